@@ -0,0 +1,641 @@
+package oocesk;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import oocesk.HandlerTable.Handlers;
+
+/**
+ * Compiles method bodies into trees of specialized closures.
+ *
+ * Each statement becomes a closure that does only its own work: labels and
+ * skips disappear, jumps hold their target statement directly, register and
+ * field slots are constants, literals are allocated once, and each primitive
+ * operation gets its own closure instead of a switch. Nothing is looked up by
+ * name when the closures run.
+ *
+ * Where a method has a {@link HandlerTable}, pushHandler and popHandler
+ * disappear too: each throw and call holds the handlers in force at it, so
+ * code that throws nothing pays nothing for its handlers and pushes no
+ * continuations for them. Other methods push handlers as the interpreter does.
+ *
+ * The closures are themselves statements and expressions, so compiled code
+ * runs on the same machine, stores and continuations as the interpreter, and
+ * the two may call into each other.
+ */
+final class ClosureCompiler {
+
+  /* The compiled form of every statement of the body, including elided ones. */
+  private final IdentityHashMap<Stmt, Stmt> compiled = new IdentityHashMap<Stmt, Stmt>();
+
+  /* Jumps whose targets are set once every statement is compiled. */
+  private final List<Jump> jumps = new ArrayList<Jump>();
+
+  /* The static handlers of the method, or null if it pushes them as it runs. */
+  private HandlerTable table;
+
+  /* The entry of each stack of handlers in the table, with its handler. */
+  private final IdentityHashMap<Handlers, Catch> catches = new IdentityHashMap<Handlers, Catch>();
+
+  /* The handlers in force at the statement being compiled. */
+  private Catch current;
+
+  private ClosureCompiler() {}
+
+  /**
+   * Compiles the body of a method.
+   *
+   * @param method
+   *          the method to compile
+   * @return the first compiled statement, or null if the body is empty
+   */
+  static Stmt compile(MethodDef method) {
+    return new ClosureCompiler().compileBody(method);
+  }
+
+  private Stmt compileBody(MethodDef method) {
+    table = HandlerTable.of(method);
+
+    List<Stmt> stmts = new ArrayList<Stmt>();
+    for (Stmt s = method.body; s != null; s = s.next)
+      stmts.add(s);
+
+    // Compile back to front, so that each successor already exists:
+    for (int i = stmts.size() - 1; i >= 0; --i) {
+      Stmt s = stmts.get(i);
+      current = table == null ? null : catchesFor(table.at(i));
+      compiled.put(s, compileStmt(s, successor(s)));
+    }
+
+    // Now every label has a compiled statement to jump to:
+    for (Jump jump : jumps)
+      jump.target = resolve(jump.labeled, jump.label);
+    for (Map.Entry<Handlers, Catch> e : catches.entrySet()) {
+      PushHandlerStmt push = e.getKey().top;
+      e.getValue().target = resolve(push.target, push.label);
+    }
+
+    return method.body == null ? null : compiled.get(method.body);
+  }
+
+  private Catch catchesFor(Handlers handlers) {
+    if (handlers == null)
+      return null;
+    Catch c = catches.get(handlers);
+    if (c == null) {
+      c = new Catch(handlers.top.classs, catchesFor(handlers.below));
+      catches.put(handlers, c);
+    }
+    return c;
+  }
+
+  private Stmt successor(Stmt stmt) {
+    return stmt.next == null ? null : compiled.get(stmt.next);
+  }
+
+  private Stmt resolve(Stmt target, String label) {
+    if (target == null || !compiled.containsKey(target))
+      throw new RuntimeException("no such label in method: " + label);
+    return compiled.get(target);
+  }
+
+  /* Statements. */
+
+  private Stmt compileStmt(Stmt stmt, Stmt next) {
+    if (stmt instanceof LabelStmt || stmt instanceof SkipStmt)
+      return next;
+
+    if (stmt instanceof GotoStmt) {
+      GotoStmt s = (GotoStmt) stmt;
+      Jump jump = new Jump(next, s.label, s.target);
+      jumps.add(jump);
+      return jump;
+    }
+
+    if (stmt instanceof IfStmt) {
+      IfStmt s = (IfStmt) stmt;
+      // Branches on a folded condition always or never jump:
+      if (s.condition instanceof BooleanExp && !((BooleanExp) s.condition).value)
+        return next;
+      Jump jump = s.condition instanceof BooleanExp ? new Jump(next, s.label, s.target)
+          : new Branch(next, s.label, s.target, compileExp(s.condition));
+      jumps.add(jump);
+      return jump;
+    }
+
+    if (stmt instanceof AssignAExpStmt) {
+      AssignAExpStmt s = (AssignAExpStmt) stmt;
+      return new Assign(next, s.lhsSlot, compileExp(s.rhs));
+    }
+
+    if (stmt instanceof NewStmt) {
+      NewStmt s = (NewStmt) stmt;
+      return new New(next, s.lhsSlot, s.classs());
+    }
+
+    if (stmt instanceof InvokeStmt) {
+      InvokeStmt s = (InvokeStmt) stmt;
+      return new Invoke(next, s.lhsSlot, compileExp(s.object), s.cache, compileExps(s.args),
+          current, s.tail && current == null);
+    }
+
+    if (stmt instanceof InvokeSuperStmt) {
+      InvokeSuperStmt s = (InvokeSuperStmt) stmt;
+      return new InvokeSuper(next, s.lhsSlot, s.target, s.cache, compileExps(s.args), current,
+          s.tail && current == null);
+    }
+
+    if (stmt instanceof ReturnStmt)
+      return new Return(next, compileExp(((ReturnStmt) stmt).result));
+
+    if (stmt instanceof PrintStmt)
+      return new Print(next, compileExps(((PrintStmt) stmt).args));
+
+    if (stmt instanceof FieldAssignStmt) {
+      FieldAssignStmt s = (FieldAssignStmt) stmt;
+      return new FieldAssign(next, compileExp(s.object), s.field, compileExp(s.rhs));
+    }
+
+    if ((stmt instanceof PushHandlerStmt || stmt instanceof PopHandlerStmt) && table != null)
+      return next;
+
+    if (stmt instanceof PushHandlerStmt) {
+      PushHandlerStmt s = (PushHandlerStmt) stmt;
+      PushHandler push = new PushHandler(next, s.label, s.target, s.classs);
+      jumps.add(push);
+      return push;
+    }
+
+    if (stmt instanceof PopHandlerStmt)
+      return new PopHandler(next);
+
+    if (stmt instanceof ThrowStmt)
+      return new Throw(next, compileExp(((ThrowStmt) stmt).exception), current);
+
+    if (stmt instanceof MoveExceptionStmt)
+      return new MoveException(next, ((MoveExceptionStmt) stmt).registerSlot);
+
+    throw new RuntimeException("cannot compile statement: " + stmt.getClass().getName());
+  }
+
+  /**
+   * A statement with a target label, resolved after the whole body is
+   * compiled.
+   */
+  private static class Jump extends Stmt {
+    final String label;
+
+    /* The labeled statement of the source, before compilation. */
+    final Stmt labeled;
+
+    Stmt target;
+
+    Jump(Stmt next, String label, Stmt labeled) {
+      super(next);
+      this.label = label;
+      this.labeled = labeled;
+    }
+
+    public void exec(Machine m) {
+      m.stmt = target;
+    }
+  }
+
+  private static final class Branch extends Jump {
+    final AExp condition;
+
+    Branch(Stmt next, String label, Stmt labeled, AExp condition) {
+      super(next, label, labeled);
+      this.condition = condition;
+    }
+
+    public void exec(Machine m) {
+      m.stmt = condition.eval(m.fp, m.store).toBoolean() ? target : next;
+    }
+  }
+
+  private static final class PushHandler extends Jump {
+    final ClassDef classs;
+
+    PushHandler(Stmt next, String label, Stmt labeled, ClassDef classs) {
+      super(next, label, labeled);
+      this.classs = classs;
+    }
+
+    public void exec(Machine m) {
+      m.stack.pushHandler(classs, target);
+      m.stmt = next;
+    }
+  }
+
+  private static final class Assign extends Stmt {
+    final int slot;
+
+    final AExp rhs;
+
+    Assign(Stmt next, int slot, AExp rhs) {
+      super(next);
+      this.slot = slot;
+      this.rhs = rhs;
+    }
+
+    public void exec(Machine m) {
+      m.store = m.store.bind(m.fp, slot, rhs.eval(m.fp, m.store));
+      m.stmt = next;
+    }
+  }
+
+  private static final class New extends Stmt {
+    final int slot;
+
+    final ClassDef classs;
+
+    final FieldLayout layout;
+
+    New(Stmt next, int slot, ClassDef classs) {
+      super(next);
+      this.slot = slot;
+      this.classs = classs;
+      this.layout = classs.fieldLayout();
+    }
+
+    public void exec(Machine m) {
+      ObjectValue object = new ObjectValue(classs, layout, new ObjectPointer());
+      m.store = m.store.batch().allocObject(object).bind(m.fp, slot, object).publish();
+      m.stmt = next;
+    }
+  }
+
+  private static final class Invoke extends Stmt {
+    final int slot;
+
+    final AExp object;
+
+    final InlineCache cache;
+
+    final AExp[] args;
+
+    final Catch catches;
+
+    /* In tail position, with no static handlers in force. */
+    final boolean tail;
+
+    Invoke(Stmt next, int slot, AExp object, InlineCache cache, AExp[] args, Catch catches,
+        boolean tail) {
+      super(next);
+      this.slot = slot;
+      this.object = object;
+      this.cache = cache;
+      this.args = args;
+      this.catches = catches;
+      this.tail = tail;
+    }
+
+    public void exec(Machine m) {
+      ObjectValue thiss = (ObjectValue) object.eval(m.fp, m.store);
+      MethodDef method = cache.lookup(thiss);
+      if (!(tail && AbstractInvokeStmt.tailCall(method.code(), method, thiss, args, m)))
+        AbstractInvokeStmt.call(method.code(), method, thiss, args, slot, next, catches, m);
+    }
+  }
+
+  private static final class InvokeSuper extends Stmt {
+    final int slot;
+
+    final MethodDef target;
+
+    final InlineCache cache;
+
+    final AExp[] args;
+
+    final Catch catches;
+
+    final boolean tail;
+
+    InvokeSuper(Stmt next, int slot, MethodDef target, InlineCache cache, AExp[] args,
+        Catch catches, boolean tail) {
+      super(next);
+      this.slot = slot;
+      this.target = target;
+      this.cache = cache;
+      this.args = args;
+      this.catches = catches;
+      this.tail = tail;
+    }
+
+    public void exec(Machine m) {
+      ObjectValue thiss = (ObjectValue) m.store.lookup(m.fp, FrameLayout.THIS_SLOT);
+      MethodDef method = target != null ? target : cache.lookup(thiss);
+      if (!(tail && AbstractInvokeStmt.tailCall(method.code(), method, thiss, args, m)))
+        AbstractInvokeStmt.call(method.code(), method, thiss, args, slot, next, catches, m);
+    }
+  }
+
+  private static final class Return extends Stmt {
+    final AExp result;
+
+    Return(Stmt next, AExp result) {
+      super(next);
+      this.result = result;
+    }
+
+    public void exec(Machine m) {
+      m.stack.apply(result.eval(m.fp, m.store), m);
+    }
+  }
+
+  private static final class Print extends Stmt {
+    final AExp[] args;
+
+    Print(Stmt next, AExp[] args) {
+      super(next);
+      this.args = args;
+    }
+
+    public void exec(Machine m) {
+      for (AExp arg : args)
+        System.out.println(arg.eval(m.fp, m.store).toPrint());
+      m.stmt = next;
+    }
+  }
+
+  private static final class FieldAssign extends Stmt {
+    final AExp object;
+
+    final FieldCache fieldCache;
+
+    final AExp rhs;
+
+    FieldAssign(Stmt next, AExp object, String field, AExp rhs) {
+      super(next);
+      this.object = object;
+      this.fieldCache = new FieldCache(field);
+      this.rhs = rhs;
+    }
+
+    public void exec(Machine m) {
+      ObjectValue obj = (ObjectValue) object.eval(m.fp, m.store);
+      Value val = rhs.eval(m.fp, m.store);
+      m.store = m.store.bind(obj.pointer, fieldCache.slot(obj.layout), val);
+      m.stmt = next;
+    }
+  }
+
+  private static final class PopHandler extends Stmt {
+    PopHandler(Stmt next) {
+      super(next);
+    }
+
+    public void exec(Machine m) {
+      m.stack.popHandler(m);
+      m.stmt = next;
+    }
+  }
+
+  private static final class Throw extends Stmt {
+    final AExp exception;
+
+    final Catch catches;
+
+    Throw(Stmt next, AExp exception, Catch catches) {
+      super(next);
+      this.exception = exception;
+      this.catches = catches;
+    }
+
+    public void exec(Machine m) {
+      ObjectValue ex = (ObjectValue) exception.eval(m.fp, m.store);
+      if (!Catch.handle(catches, ex, m))
+        m.stack.handle(ex, m);
+    }
+  }
+
+  private static final class MoveException extends Stmt {
+    final int slot;
+
+    MoveException(Stmt next, int slot) {
+      super(next);
+      this.slot = slot;
+    }
+
+    public void exec(Machine m) {
+      m.store = m.store.bind(m.fp, slot, m.store.lookup(m.fp, FrameLayout.EX_SLOT));
+      m.stmt = next;
+    }
+  }
+
+  /* Expressions. */
+
+  private AExp[] compileExps(AExp[] exps) {
+    AExp[] result = new AExp[exps.length];
+    for (int i = 0; i < exps.length; ++i)
+      result[i] = compileExp(exps[i]);
+    return result;
+  }
+
+  private AExp compileExp(AExp exp) {
+    // Integer literals hold their value already:
+    if (exp instanceof IntExp)
+      return exp;
+
+    if (exp instanceof BooleanExp || exp instanceof NullExp || exp instanceof VoidExp)
+      return new Constant(exp.eval(null, null));
+
+    if (exp instanceof ThisExp)
+      return new Slot(FrameLayout.THIS_SLOT);
+
+    if (exp instanceof RegisterExp)
+      return new Slot(((RegisterExp) exp).slot);
+
+    if (exp instanceof AtomicOpExp)
+      return compileOp((AtomicOpExp) exp);
+
+    if (exp instanceof InstanceOfExp) {
+      InstanceOfExp e = (InstanceOfExp) exp;
+      return new InstanceOf(compileExp(e.object), e.classs);
+    }
+
+    if (exp instanceof FieldExp) {
+      FieldExp e = (FieldExp) exp;
+      return new Field(compileExp(e.object), e.field);
+    }
+
+    throw new RuntimeException("cannot compile expression: " + exp.getClass().getName());
+  }
+
+  private AExp compileOp(AtomicOpExp exp) {
+    AExp[] args = compileExps(exp.args);
+    switch (exp.op) {
+    case ADD:
+      return args.length == 2 ? new Add2(args[0], args[1]) : new Add(args);
+    case MUL:
+      return args.length == 2 ? new Mul2(args[0], args[1]) : new Mul(args);
+    case SUB:
+      return new Sub(args[0], args[1]);
+    case EQ:
+      return new Eq(args[0], args[1]);
+    default:
+      throw new RuntimeException("unhandled atomic op: " + exp.op);
+    }
+  }
+
+  private static final class Constant extends AExp {
+    final Value value;
+
+    Constant(Value value) {
+      this.value = value;
+    }
+
+    Value eval(FramePointer fp, Store store) {
+      return value;
+    }
+  }
+
+  private static final class Slot extends AExp {
+    final int slot;
+
+    Slot(int slot) {
+      this.slot = slot;
+    }
+
+    Value eval(FramePointer fp, Store store) {
+      return store.lookup(fp, slot);
+    }
+  }
+
+  private static final class Add2 extends AExp {
+    final AExp a, b;
+
+    Add2(AExp a, AExp b) {
+      this.a = a;
+      this.b = b;
+    }
+
+    Value eval(FramePointer fp, Store store) {
+      return IntValue.of(evalInt(fp, store));
+    }
+
+    int evalInt(FramePointer fp, Store store) {
+      return a.evalInt(fp, store) + b.evalInt(fp, store);
+    }
+  }
+
+  private static final class Add extends AExp {
+    final AExp[] args;
+
+    Add(AExp[] args) {
+      this.args = args;
+    }
+
+    Value eval(FramePointer fp, Store store) {
+      return IntValue.of(evalInt(fp, store));
+    }
+
+    int evalInt(FramePointer fp, Store store) {
+      int sum = 0;
+      for (AExp arg : args)
+        sum += arg.evalInt(fp, store);
+      return sum;
+    }
+  }
+
+  private static final class Mul2 extends AExp {
+    final AExp a, b;
+
+    Mul2(AExp a, AExp b) {
+      this.a = a;
+      this.b = b;
+    }
+
+    Value eval(FramePointer fp, Store store) {
+      return IntValue.of(evalInt(fp, store));
+    }
+
+    int evalInt(FramePointer fp, Store store) {
+      return a.evalInt(fp, store) * b.evalInt(fp, store);
+    }
+  }
+
+  private static final class Mul extends AExp {
+    final AExp[] args;
+
+    Mul(AExp[] args) {
+      this.args = args;
+    }
+
+    Value eval(FramePointer fp, Store store) {
+      return IntValue.of(evalInt(fp, store));
+    }
+
+    int evalInt(FramePointer fp, Store store) {
+      int prod = 1;
+      for (AExp arg : args)
+        prod *= arg.evalInt(fp, store);
+      return prod;
+    }
+  }
+
+  private static final class Sub extends AExp {
+    final AExp a, b;
+
+    Sub(AExp a, AExp b) {
+      this.a = a;
+      this.b = b;
+    }
+
+    Value eval(FramePointer fp, Store store) {
+      return IntValue.of(evalInt(fp, store));
+    }
+
+    int evalInt(FramePointer fp, Store store) {
+      return a.evalInt(fp, store) - b.evalInt(fp, store);
+    }
+  }
+
+  private static final class Eq extends AExp {
+    final AExp a, b;
+
+    Eq(AExp a, AExp b) {
+      this.a = a;
+      this.b = b;
+    }
+
+    Value eval(FramePointer fp, Store store) {
+      return Value.from(a.evalInt(fp, store) == b.evalInt(fp, store));
+    }
+  }
+
+  private static final class InstanceOf extends AExp {
+    final AExp object;
+
+    final ClassDef classs;
+
+    InstanceOf(AExp object, ClassDef classs) {
+      this.object = object;
+      this.classs = classs;
+    }
+
+    Value eval(FramePointer fp, Store store) {
+      ObjectValue obj = (ObjectValue) object.eval(fp, store);
+      return Value.from(obj.isInstanceOf(classs));
+    }
+  }
+
+  private static final class Field extends AExp {
+    final AExp object;
+
+    final FieldCache fieldCache;
+
+    Field(AExp object, String field) {
+      this.object = object;
+      this.fieldCache = new FieldCache(field);
+    }
+
+    Value eval(FramePointer fp, Store store) {
+      ObjectValue obj = (ObjectValue) object.eval(fp, store);
+      return store.lookup(obj.pointer, fieldCache.slot(obj.layout));
+    }
+  }
+}
@@ -0,0 +1,321 @@
+package oocesk;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs method bodies in direct style, on the Java call stack.
+ *
+ * Each call is a Java call to {@link #run(MethodDef, FramePointer)} for the
+ * callee and each return a Java return, so plain call-and-return code builds
+ * no continuations at all. Handlers live in a list local to each activation,
+ * and an exception unwinds the Java stack as a preallocated, stackless
+ * throwable, caught at every call site that has handlers to try. Frames stay
+ * in the store, as in the machine.
+ *
+ * Past a maximum depth, the callee runs on a {@link Machine} instead, whose
+ * continuation ends in a return to this interpreter; the machine keeps its
+ * stack on the heap, so recursion of any depth completes.
+ *
+ * The store is collected, when due, at calls and at object allocations.
+ */
+final class DirectInterpreter {
+
+  /**
+   * The default number of activations kept on the Java stack.
+   */
+  static final int DEFAULT_MAX_DEPTH = 1000;
+
+  /**
+   * A pushed exception handler.
+   */
+  private static final class Handler {
+    final ClassDef classs;
+
+    final Stmt target;
+
+    final Handler next;
+
+    Handler(ClassDef classs, Stmt target, Handler next) {
+      this.classs = classs;
+      this.target = target;
+      this.next = next;
+    }
+  }
+
+  /**
+   * Unwinds the Java stack, for an exception or for halting. Instances are
+   * preallocated and carry no stack trace.
+   */
+  private static final class Unwind extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    /* The exception being thrown, if any. */
+    ObjectValue exception;
+
+    Unwind() {
+      super(null, null, false, false);
+    }
+  }
+
+  /**
+   * The continuation beneath a callee run on the machine: returning to it
+   * halts the machine with the result, and an exception that reaches it goes
+   * on to the activations on the Java stack.
+   */
+  private final class ReturnKont extends Kont {
+    Value result;
+
+    ReturnKont() {
+      super(null);
+    }
+
+    public void apply(Value returnValue, Machine m) {
+      result = returnValue;
+      m.stmt = null;
+    }
+
+    protected boolean tryHandle(ObjectValue exception, Machine m) {
+      throw raise(exception);
+    }
+
+    /**
+     * The frames on the Java stack are live.
+     */
+    public void addRoots(List<Pointer> roots) {
+      DirectInterpreter.this.addRoots(roots);
+    }
+  }
+
+  private final Unwind raise = new Unwind();
+
+  private final Unwind halt = new Unwind();
+
+  /* Runs the simple statements, and holds the store. */
+  private final Machine m;
+
+  private final Collector collector;
+
+  private final int maxDepth;
+
+  /* The frame pointers of the activations on the Java stack. */
+  private FramePointer[] frames;
+
+  private int depth;
+
+  /* The number of callees run on the machine. */
+  private int fallbacks;
+
+  private DirectInterpreter(Store store, Collector collector, int maxDepth) {
+    this.m = new Machine(null, null, store, HaltKont.HALT);
+    this.collector = collector;
+    this.maxDepth = maxDepth;
+    this.frames = new FramePointer[Math.min(maxDepth, 64) + 1];
+  }
+
+  /**
+   * Executes the main method in the supplied class.
+   *
+   * @param mainClass
+   *          the class with a main method
+   * @param store0
+   *          the initial store
+   * @param collector
+   *          the garbage collector, or null to never collect
+   * @param maxDepth
+   *          the number of activations to keep on the Java stack before
+   *          running callees on the machine, at least 0
+   * @return the number of calls run on the machine
+   */
+  static int execute(ClassDef mainClass, Store store0, Collector collector, int maxDepth) {
+    if (maxDepth < 0)
+      throw new RuntimeException("negative maximum depth: " + maxDepth);
+    State state0 = OOCESK.initialState(mainClass, store0);
+    MethodDef main = mainClass.lookupMethod("main");
+    DirectInterpreter interpreter = new DirectInterpreter(state0.store, collector, maxDepth);
+    interpreter.frames[interpreter.depth++] = state0.fp;
+
+    Value result;
+    try {
+      result = interpreter.run(main, state0.fp);
+    } catch (Unwind u) {
+      if (u == interpreter.halt)
+        return interpreter.fallbacks;
+      throw new RuntimeException("uncaught exception: " + u.exception);
+    }
+    throw new RuntimeException("terminated: " + result);
+  }
+
+  private Value run(MethodDef method, FramePointer fp) {
+    Handler handlers = null;
+    Stmt s = method.body;
+
+    for (;;) {
+      // Falling off the end of a method halts the machine:
+      if (s == null)
+        throw halt;
+
+      if (s instanceof AbstractInvokeStmt) {
+        AbstractInvokeStmt call = (AbstractInvokeStmt) s;
+
+        // A tail call with no handlers to keep takes over this activation:
+        if (call.tail && handlers == null) {
+          s = enter(call, fp, fp).body;
+          continue;
+        }
+
+        Value result;
+        try {
+          result = invoke(call, fp);
+        } catch (Unwind u) {
+          if (u != raise || handlers == null)
+            throw u;
+          ObjectValue exception = raise.exception;
+          Handler h = handlerFor(exception, handlers);
+          handlers = h.next;
+          s = caught(h, exception, fp);
+          continue;
+        }
+        m.store = m.store.bind(fp, call.lhsSlot, result);
+        s = s.next;
+      }
+
+      else if (s instanceof ReturnStmt) {
+        return ((ReturnStmt) s).result.eval(fp, m.store);
+      }
+
+      else if (s instanceof PushHandlerStmt) {
+        PushHandlerStmt stmt = (PushHandlerStmt) s;
+        handlers = new Handler(stmt.classs, stmt.target, handlers);
+        s = s.next;
+      }
+
+      else if (s instanceof PopHandlerStmt) {
+        if (handlers == null)
+          throw new RuntimeException("no handler to pop!");
+        handlers = handlers.next;
+        s = s.next;
+      }
+
+      else if (s instanceof ThrowStmt) {
+        ObjectValue exception = (ObjectValue) ((ThrowStmt) s).exception.eval(fp, m.store);
+        Handler h = handlerFor(exception, handlers);
+        handlers = h.next;
+        s = caught(h, exception, fp);
+      }
+
+      else {
+        if (s instanceof NewStmt)
+          maybeCollect();
+        m.stmt = s;
+        m.fp = fp;
+        s.exec(m);
+        s = m.stmt;
+      }
+    }
+  }
+
+  /**
+   * Returns the innermost handler that catches an exception, or throws the
+   * exception on to the caller if there is none.
+   */
+  private Handler handlerFor(ObjectValue exception, Handler handlers) {
+    for (Handler h = handlers; h != null; h = h.next) {
+      if (exception.isInstanceOf(h.classs))
+        return h;
+    }
+    throw raise(exception);
+  }
+
+  /* Places a caught exception in $ex, returning the handler's target. */
+  private Stmt caught(Handler h, ObjectValue exception, FramePointer fp) {
+    m.store = m.store.bind(fp, FrameLayout.EX_SLOT, exception);
+    return h.target;
+  }
+
+  private Unwind raise(ObjectValue exception) {
+    raise.exception = exception;
+    return raise;
+  }
+
+  /**
+   * Calls the method of a call site, returning its result.
+   */
+  private Value invoke(AbstractInvokeStmt call, FramePointer fp) {
+    FramePointer fp_ = fp.push();
+    MethodDef method = enter(call, fp, fp_);
+
+    if (depth >= maxDepth)
+      return runOnMachine(method, fp_);
+
+    if (depth == frames.length)
+      frames = Arrays.copyOf(frames, Math.min(2 * depth, maxDepth + 1));
+    frames[depth++] = fp_;
+    try {
+      return run(method, fp_);
+    } finally {
+      frames[--depth] = null;
+    }
+  }
+
+  /**
+   * Looks up the method of a call site and allocates its frame, which may
+   * replace the caller's.
+   *
+   * @return the method called
+   */
+  private MethodDef enter(AbstractInvokeStmt call, FramePointer fp, FramePointer fp_) {
+    ObjectValue thiss;
+    MethodDef method;
+    if (call instanceof InvokeStmt) {
+      thiss = (ObjectValue) ((InvokeStmt) call).object.eval(fp, m.store);
+      method = call.cache.lookup(thiss);
+    } else {
+      thiss = (ObjectValue) m.store.lookup(fp, FrameLayout.THIS_SLOT);
+      MethodDef target = ((InvokeSuperStmt) call).target;
+      method = target != null ? target : call.cache.lookup(thiss);
+    }
+
+    maybeCollect();
+
+    // Bind $this and the arguments in the new frame:
+    Value[] frame = new Value[method.frameSize];
+    frame[FrameLayout.THIS_SLOT] = thiss;
+    for (int i = 0; i < method.formals.length; ++i)
+      frame[method.formalSlots[i]] = call.args[i].eval(fp, m.store);
+    m.store = m.store.alloc(fp_, frame);
+    return method;
+  }
+
+  /**
+   * Runs a method on the machine, whose frame is already allocated.
+   */
+  private Value runOnMachine(MethodDef method, FramePointer fp) {
+    ++fallbacks;
+    ReturnKont kont = new ReturnKont();
+    Machine machine = new Machine(method.code(), fp, m.store, kont);
+    try {
+      machine.run(collector);
+    } finally {
+      m.store = machine.store;
+    }
+    if (kont.result == null)
+      throw halt;
+    return kont.result;
+  }
+
+  /* Collects the store if it is due, with the frames on the Java stack as roots. */
+  private void maybeCollect() {
+    if (collector != null && collector.isDue(m.store)) {
+      List<Pointer> roots = new ArrayList<Pointer>();
+      addRoots(roots);
+      m.store = collector.collect(m.store, roots);
+    }
+  }
+
+  private void addRoots(List<Pointer> roots) {
+    for (int i = 0; i < depth; ++i)
+      roots.add(frames[i]);
+  }
+}
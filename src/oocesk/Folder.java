@@ -0,0 +1,155 @@
+package oocesk;
+
+/**
+ * Folds constant expressions in the method bodies of a loaded program.
+ *
+ * Arithmetic and equality over literals are evaluated once, when the program
+ * is loaded, and replaced by their results. So are instanceof tests on this
+ * that the class hierarchy already decides: the receiver of a method is always
+ * an instance of the method's class, unless the method assigns $this. An
+ * expression that would fail is left alone, for the run to report.
+ *
+ * Branches left with a constant condition keep their place in the syntax
+ * tree, so labels and handler tables still line up with it; the compilers
+ * turn them into plain jumps, or drop them.
+ */
+final class Folder {
+
+  private final ClassDef classs;
+
+  /* Whether $this holds the receiver throughout the current method. */
+  private boolean receiverFixed;
+
+  private int folded;
+
+  private Folder(ClassDef classs) {
+    this.classs = classs;
+  }
+
+  /**
+   * Folds the constant expressions in every method of a linked program.
+   *
+   * @param program
+   *          the program to fold
+   * @return the number of expressions replaced by constants and branches
+   *         left with a constant condition
+   */
+  static int fold(Program program) {
+    int folded = 0;
+    for (ClassDef c : program.classes()) {
+      Folder folder = new Folder(c);
+      for (MethodDef m : c.methods())
+        folder.foldMethod(m);
+      folded += folder.folded;
+    }
+    return folded;
+  }
+
+  private void foldMethod(MethodDef method) {
+    receiverFixed = true;
+    for (Stmt s = method.body; s != null; s = s.next) {
+      if ("$this".equals(assignedRegister(s)))
+        receiverFixed = false;
+    }
+
+    for (Stmt s = method.body; s != null; s = s.next) {
+      if (s instanceof IfStmt) {
+        IfStmt stmt = (IfStmt) s;
+        stmt.condition = fold(stmt.condition);
+        if (stmt.condition instanceof BooleanExp)
+          folded++;
+      } else if (s instanceof AssignAExpStmt) {
+        AssignAExpStmt stmt = (AssignAExpStmt) s;
+        stmt.rhs = fold(stmt.rhs);
+      } else if (s instanceof AbstractInvokeStmt) {
+        foldAll(((AbstractInvokeStmt) s).args);
+      } else if (s instanceof ReturnStmt) {
+        ReturnStmt stmt = (ReturnStmt) s;
+        stmt.result = fold(stmt.result);
+      } else if (s instanceof PrintStmt) {
+        foldAll(((PrintStmt) s).args);
+      } else if (s instanceof FieldAssignStmt) {
+        FieldAssignStmt stmt = (FieldAssignStmt) s;
+        stmt.rhs = fold(stmt.rhs);
+      }
+    }
+  }
+
+  private void foldAll(AExp[] exps) {
+    for (int i = 0; i < exps.length; ++i)
+      exps[i] = fold(exps[i]);
+  }
+
+  /**
+   * Returns a constant equivalent to an expression, or the expression itself
+   * with its arguments folded.
+   */
+  private AExp fold(AExp exp) {
+    if (exp instanceof AtomicOpExp) {
+      AtomicOpExp e = (AtomicOpExp) exp;
+      foldAll(e.args);
+      for (AExp arg : e.args) {
+        if (!isConstant(arg))
+          return e;
+      }
+      Value value;
+      try {
+        value = e.eval(null, null);
+      } catch (RuntimeException ex) {
+        return e;
+      }
+      folded++;
+      if (value instanceof IntValue)
+        return new IntExp(value.toInt());
+      return new BooleanExp(value.toBoolean());
+    }
+
+    if (exp instanceof InstanceOfExp) {
+      InstanceOfExp e = (InstanceOfExp) exp;
+      if (!(e.object instanceof ThisExp) || !receiverFixed)
+        return e;
+      Boolean value = receiverIsInstanceOf(e.classs);
+      if (value == null)
+        return e;
+      folded++;
+      return new BooleanExp(value);
+    }
+
+    return exp;
+  }
+
+  /**
+   * Decides whether every receiver of the current method is an instance of a
+   * class, returning null if it depends on the receiver.
+   */
+  private Boolean receiverIsInstanceOf(ClassDef other) {
+    // An undefined class has no instances:
+    if (other == null)
+      return false;
+    if (classs.isSubclassOf(other))
+      return true;
+    // A receiver may only be an instance of a subclass of this one:
+    if (!other.isSubclassOf(classs))
+      return false;
+    return null;
+  }
+
+  private static boolean isConstant(AExp exp) {
+    return exp instanceof IntExp || exp instanceof BooleanExp;
+  }
+
+  /**
+   * Returns the register a statement assigns, if any.
+   */
+  private static String assignedRegister(Stmt s) {
+    if (s instanceof AssignAExpStmt)
+      return ((AssignAExpStmt) s).lhs;
+    if (s instanceof NewStmt)
+      return ((NewStmt) s).lhs;
+    if (s instanceof AbstractInvokeStmt)
+      return ((AbstractInvokeStmt) s).lhs;
+    if (s instanceof MoveExceptionStmt)
+      return ((MoveExceptionStmt) s).register;
+    return null;
+  }
+}
@@ -0,0 +1,168 @@
+package oocesk;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * The exception handlers in force at each statement of a method, found
+ * statically.
+ *
+ * Handlers are pushed and popped dynamically in OOCESK, but in most methods
+ * each pushHandler is matched by a popHandler on every path, so every
+ * statement sees the same stack of handlers however it is reached. The table
+ * of those stacks plays the part of a JVM exception table: compiled code can
+ * consult it when an exception is thrown instead of pushing handlers as it
+ * runs. Methods where the stack depends on the path taken have no table.
+ */
+final class HandlerTable {
+
+  /**
+   * A stack of handlers, innermost first.
+   */
+  static final class Handlers {
+    final PushHandlerStmt top;
+
+    final Handlers below;
+
+    Handlers(PushHandlerStmt top, Handlers below) {
+      this.top = top;
+      this.below = below;
+    }
+
+    static boolean same(Handlers a, Handlers b) {
+      while (a != null && b != null) {
+        if (a.top != b.top)
+          return false;
+        a = a.below;
+        b = b.below;
+      }
+      return a == b;
+    }
+  }
+
+  private final List<Stmt> stmts = new ArrayList<Stmt>();
+
+  private final IdentityHashMap<Stmt, Integer> index = new IdentityHashMap<Stmt, Integer>();
+
+  /* The handlers in force at each statement, once it is known to be reachable. */
+  private final Handlers[] handlers;
+
+  private final boolean[] reachable;
+
+  private HandlerTable(MethodDef method) {
+    for (Stmt s = method.body; s != null; s = s.next) {
+      index.put(s, stmts.size());
+      stmts.add(s);
+    }
+    this.handlers = new Handlers[stmts.size()];
+    this.reachable = new boolean[stmts.size()];
+  }
+
+  /**
+   * Finds the handlers in force at each statement of a method.
+   *
+   * @param method
+   *          the method to analyze
+   * @return the handler table of the method, or null if the handlers in force
+   *         at some statement depend on the path taken to it, a handler is
+   *         popped that the method did not push, or a jump leaves the method
+   */
+  static HandlerTable of(MethodDef method) {
+    HandlerTable table = new HandlerTable(method);
+    return table.analyze() ? table : null;
+  }
+
+  /**
+   * Returns the statements of the method, in order.
+   */
+  List<Stmt> stmts() {
+    return stmts;
+  }
+
+  /**
+   * Returns the position of a statement of the method, or -1 if it is not in
+   * the method.
+   */
+  int indexOf(Stmt labeled) {
+    Integer i = labeled == null ? null : index.get(labeled);
+    return i == null ? -1 : i;
+  }
+
+  /**
+   * Checks whether the statement at a position can be reached at all.
+   */
+  boolean isReachable(int i) {
+    return reachable[i];
+  }
+
+  /**
+   * Returns the handlers in force at the statement at a position.
+   */
+  Handlers at(int i) {
+    return handlers[i];
+  }
+
+  /**
+   * Finds the handlers in force at every reachable statement, returning false
+   * if there is no one stack of them for some statement.
+   */
+  private boolean analyze() {
+    int n = stmts.size();
+    List<Integer> worklist = new ArrayList<Integer>();
+    if (n > 0)
+      flow(0, null, worklist);
+    while (!worklist.isEmpty()) {
+      int i = worklist.remove(worklist.size() - 1);
+      Stmt s = stmts.get(i);
+      Handlers h = handlers[i];
+
+      // An exception may be caught by any handler in force:
+      for (Handlers k = h; k != null; k = k.below) {
+        if (!flow(indexOf(k.top.target), k.below, worklist))
+          return false;
+      }
+
+      if (s instanceof ReturnStmt || s instanceof ThrowStmt)
+        continue;
+      if (s instanceof GotoStmt) {
+        if (!flow(indexOf(((GotoStmt) s).target), h, worklist))
+          return false;
+        continue;
+      }
+      if (s instanceof IfStmt) {
+        if (!flow(indexOf(((IfStmt) s).target), h, worklist))
+          return false;
+      }
+
+      Handlers after = h;
+      if (s instanceof PushHandlerStmt) {
+        after = new Handlers((PushHandlerStmt) s, h);
+      } else if (s instanceof PopHandlerStmt) {
+        // No handler to pop:
+        if (h == null)
+          return false;
+        after = h.below;
+      }
+      if (i + 1 < n && !flow(i + 1, after, worklist))
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Records the handlers in force at a statement, returning false if the
+   * statement is outside the method or has other handlers on another path.
+   */
+  private boolean flow(int i, Handlers h, List<Integer> worklist) {
+    if (i < 0)
+      return false;
+    if (!reachable[i]) {
+      reachable[i] = true;
+      handlers[i] = h;
+      worklist.add(i);
+      return true;
+    }
+    return Handlers.same(handlers[i], h);
+  }
+}
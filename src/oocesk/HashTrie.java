@@ -0,0 +1,390 @@
+package oocesk;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A persistent hash array mapped trie.
+ *
+ * Every update returns a new trie and leaves the receiver untouched. The new
+ * trie shares all of the old structure except the nodes along the path to the
+ * updated key, so an update costs O(log32 n) instead of a full copy.
+ *
+ * Keys are compared with {@link Object#equals(Object)} and hashed with
+ * {@link Object#hashCode()}; null keys are not permitted.
+ */
+final class HashTrie<K, V> {
+
+  private static final int BITS = 5;
+
+  private static final int MASK = (1 << BITS) - 1;
+
+  @SuppressWarnings("rawtypes")
+  private static final HashTrie EMPTY = new HashTrie(null, 0);
+
+  /**
+   * The root node, or null if the trie is empty.
+   */
+  private final Node root;
+
+  /**
+   * The number of entries in the trie.
+   */
+  private final int size;
+
+  private HashTrie(Node root, int size) {
+    this.root = root;
+    this.size = size;
+  }
+
+  /**
+   * Returns the empty trie.
+   */
+  @SuppressWarnings("unchecked")
+  public static <K, V> HashTrie<K, V> empty() {
+    return EMPTY;
+  }
+
+  /**
+   * Returns the number of entries in this trie.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Looks up a key.
+   *
+   * @param key
+   *          the key to look up
+   * @return the value bound to the key, or null if there is none
+   */
+  @SuppressWarnings("unchecked")
+  public V get(K key) {
+    if (root == null)
+      return null;
+    return (V) root.find(0, key.hashCode(), key);
+  }
+
+  /**
+   * Binds a key to a value.
+   *
+   * @param key
+   *          the key to bind
+   * @param value
+   *          the value to bind it to
+   * @return a trie which agrees with this one except at the given key
+   */
+  public HashTrie<K, V> put(K key, V value) {
+    Node oldRoot = root == null ? BitmapNode.EMPTY : root;
+    Added added = new Added();
+    Node newRoot = oldRoot.assoc(null, 0, key.hashCode(), key, value, added);
+    if (newRoot == root)
+      return this;
+    return new HashTrie<K, V>(newRoot, added.value ? size + 1 : size);
+  }
+
+  /**
+   * Returns a transient copy of this trie, for applying many updates at the
+   * cost of one.
+   */
+  public Transient<K, V> asTransient() {
+    return new Transient<K, V>(root, size);
+  }
+
+  /**
+   * A transient trie updates the nodes it has created in place, instead of
+   * copying them on every update.
+   * 
+   * The trie it was made from is never modified. Once {@link #persistent()} is
+   * called, the transient must not be used again.
+   */
+  static final class Transient<K, V> {
+
+    /* The owner token of nodes created by this transient; null once frozen. */
+    private Edit edit = new Edit();
+
+    private Node root;
+
+    private int size;
+
+    private Transient(Node root, int size) {
+      this.root = root;
+      this.size = size;
+    }
+
+    /**
+     * Looks up a key.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(K key) {
+      if (root == null)
+        return null;
+      return (V) root.find(0, key.hashCode(), key);
+    }
+
+    /**
+     * Binds a key to a value in place.
+     */
+    public Transient<K, V> put(K key, V value) {
+      if (edit == null)
+        throw new IllegalStateException("transient used after persistent()");
+      Node oldRoot = root == null ? BitmapNode.EMPTY : root;
+      Added added = new Added();
+      root = oldRoot.assoc(edit, 0, key.hashCode(), key, value, added);
+      if (added.value)
+        size++;
+      return this;
+    }
+
+    /**
+     * Freezes this transient into a persistent trie.
+     */
+    public HashTrie<K, V> persistent() {
+      if (edit == null)
+        throw new IllegalStateException("transient used after persistent()");
+      edit = null;
+      return new HashTrie<K, V>(root, size);
+    }
+  }
+
+  /**
+   * Returns the keys of this trie, in no particular order.
+   */
+  public List<K> keys() {
+    List<K> keys = new ArrayList<K>(size);
+    if (root != null)
+      root.collectKeys(keys);
+    return keys;
+  }
+
+  /* Nodes. */
+
+  /**
+   * Identifies the transient which owns, and may mutate, a node.
+   */
+  private static final class Edit {}
+
+  /**
+   * Records whether an update added a new key, rather than replacing one.
+   */
+  private static final class Added {
+    boolean value;
+  }
+
+  /**
+   * The position of the given hash in a node at the given shift.
+   */
+  private static int bitpos(int hash, int shift) {
+    return 1 << ((hash >>> shift) & MASK);
+  }
+
+  /**
+   * A node in the trie.
+   */
+  private static abstract class Node {
+
+    /**
+     * Finds the value for a key beneath this node.
+     */
+    abstract Object find(int shift, int hash, Object key);
+
+    /**
+     * Returns a node with the given binding, or this node if nothing changed.
+     * 
+     * Nodes owned by the given edit, if it is not null, are updated in place.
+     */
+    abstract Node assoc(Edit edit, int shift, int hash, Object key, Object value, Added added);
+
+    /**
+     * Adds every key beneath this node to the list.
+     */
+    abstract <K> void collectKeys(List<K> keys);
+  }
+
+  /**
+   * A node with up to 32 children, stored compactly and indexed by a bitmap.
+   *
+   * The array holds key-value pairs: a null key means the value is a sub-node.
+   * 
+   * The fields are only ever changed by the transient which owns the node.
+   */
+  private static final class BitmapNode extends Node {
+
+    static final BitmapNode EMPTY = new BitmapNode(null, 0, new Object[0]);
+
+    final Edit edit;
+
+    int bitmap;
+
+    Object[] array;
+
+    BitmapNode(Edit edit, int bitmap, Object[] array) {
+      this.edit = edit;
+      this.bitmap = bitmap;
+      this.array = array;
+    }
+
+    /**
+     * Returns this node if the edit owns it, or else a copy the edit owns.
+     */
+    private BitmapNode editable(Edit edit) {
+      if (edit != null && this.edit == edit)
+        return this;
+      return new BitmapNode(edit, bitmap, array.clone());
+    }
+
+    private int index(int bit) {
+      return Integer.bitCount(bitmap & (bit - 1));
+    }
+
+    Object find(int shift, int hash, Object key) {
+      int bit = bitpos(hash, shift);
+      if ((bitmap & bit) == 0)
+        return null;
+      int idx = index(bit);
+      Object k = array[2 * idx];
+      Object v = array[2 * idx + 1];
+      if (k == null)
+        return ((Node) v).find(shift + BITS, hash, key);
+      if (key.equals(k))
+        return v;
+      return null;
+    }
+
+    Node assoc(Edit edit, int shift, int hash, Object key, Object value, Added added) {
+      int bit = bitpos(hash, shift);
+      int idx = index(bit);
+
+      // A fresh slot: widen the array by one pair.
+      if ((bitmap & bit) == 0) {
+        int n = Integer.bitCount(bitmap);
+        Object[] newArray = new Object[2 * (n + 1)];
+        System.arraycopy(array, 0, newArray, 0, 2 * idx);
+        newArray[2 * idx] = key;
+        newArray[2 * idx + 1] = value;
+        System.arraycopy(array, 2 * idx, newArray, 2 * (idx + 1), 2 * (n - idx));
+        added.value = true;
+        if (edit != null && this.edit == edit) {
+          this.array = newArray;
+          this.bitmap |= bit;
+          return this;
+        }
+        return new BitmapNode(edit, bitmap | bit, newArray);
+      }
+
+      Object k = array[2 * idx];
+      Object v = array[2 * idx + 1];
+
+      // A sub-node: recur into it.
+      if (k == null) {
+        Node n = ((Node) v).assoc(edit, shift + BITS, hash, key, value, added);
+        if (n == v)
+          return this;
+        BitmapNode node = editable(edit);
+        node.array[2 * idx + 1] = n;
+        return node;
+      }
+
+      // The same key: replace the value.
+      if (key.equals(k)) {
+        if (value == v)
+          return this;
+        BitmapNode node = editable(edit);
+        node.array[2 * idx + 1] = value;
+        return node;
+      }
+
+      // A different key: push both down a level.
+      added.value = true;
+      Node sub = createNode(edit, shift + BITS, k, v, hash, key, value);
+      BitmapNode node = editable(edit);
+      node.array[2 * idx] = null;
+      node.array[2 * idx + 1] = sub;
+      return node;
+    }
+
+    @SuppressWarnings("unchecked")
+    <K> void collectKeys(List<K> keys) {
+      for (int i = 0; i < array.length; i += 2) {
+        if (array[i] == null)
+          ((Node) array[i + 1]).collectKeys(keys);
+        else
+          keys.add((K) array[i]);
+      }
+    }
+  }
+
+  /**
+   * A node holding keys whose hashes collide completely.
+   */
+  private static final class CollisionNode extends Node {
+
+    final int hash;
+
+    final Object[] array;
+
+    CollisionNode(int hash, Object[] array) {
+      this.hash = hash;
+      this.array = array;
+    }
+
+    private int indexOf(Object key) {
+      for (int i = 0; i < array.length; i += 2) {
+        if (key.equals(array[i]))
+          return i;
+      }
+      return -1;
+    }
+
+    Object find(int shift, int hash, Object key) {
+      int i = indexOf(key);
+      return i < 0 ? null : array[i + 1];
+    }
+
+    Node assoc(Edit edit, int shift, int hash, Object key, Object value, Added added) {
+      // Collisions are rare, so these nodes are always copied:
+      if (hash == this.hash) {
+        int i = indexOf(key);
+        if (i >= 0) {
+          if (array[i + 1] == value)
+            return this;
+          return new CollisionNode(hash, cloneAndSet(array, i + 1, value));
+        }
+        Object[] newArray = new Object[array.length + 2];
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        newArray[array.length] = key;
+        newArray[array.length + 1] = value;
+        added.value = true;
+        return new CollisionNode(hash, newArray);
+      }
+
+      // Nest this node in a bitmap node and add the new key there:
+      BitmapNode parent = new BitmapNode(edit, bitpos(this.hash, shift),
+          new Object[] { null, this });
+      return parent.assoc(edit, shift, hash, key, value, added);
+    }
+
+    @SuppressWarnings("unchecked")
+    <K> void collectKeys(List<K> keys) {
+      for (int i = 0; i < array.length; i += 2)
+        keys.add((K) array[i]);
+    }
+  }
+
+  private static Node createNode(Edit edit, int shift, Object k1, Object v1, int h2, Object k2,
+      Object v2) {
+    int h1 = k1.hashCode();
+    if (h1 == h2)
+      return new CollisionNode(h1, new Object[] { k1, v1, k2, v2 });
+    Added added = new Added();
+    return BitmapNode.EMPTY.assoc(edit, shift, h1, k1, v1, added).assoc(edit, shift, h2, k2, v2,
+        added);
+  }
+
+  private static Object[] cloneAndSet(Object[] array, int i, Object a) {
+    Object[] clone = array.clone();
+    clone[i] = a;
+    return clone;
+  }
+}
@@ -0,0 +1,678 @@
+package oocesk;
+
+import static oocesk.JvmClassWriter.*;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import oocesk.HandlerTable.Handlers;
+import oocesk.JvmClassWriter.Code;
+import oocesk.JvmClassWriter.Label;
+
+/**
+ * Compiles OOCESK classes to JVM classes, so that the JIT compiles hot OOCESK
+ * code to machine code.
+ *
+ * Each class becomes a JVM class with the same parent, each field a JVM field,
+ * and each method a JVM method taking and returning Object. Registers are JVM
+ * locals; goto and if become branches; invoke is a virtual call through a
+ * generated root class that declares every method name; super calls are
+ * special calls on the parent. A pushHandler/popHandler pair becomes the range
+ * of an exception table entry, and throw a JVM throw.
+ *
+ * Handlers are pushed and popped dynamically in OOCESK, so a method is only
+ * compiled if it has a {@link HandlerTable}; {@link #compile(Collection)} throws a
+ * {@link CompileException} for programs that cannot be compiled.
+ *
+ * OOCESK recursion runs on the JVM stack, of a thread started with
+ * {@link #STACK_SIZE} bytes of it. A method's tail calls to itself, outside
+ * any handler and where no subclass overrides it, become jumps, so
+ * tail-recursive loops take no stack; other recursion deep enough to exhaust
+ * the stack fails, where the machine would not.
+ */
+final class JvmBackend {
+
+  /**
+   * The prefix of the JVM names of OOCESK fields.
+   */
+  static final String FIELD_PREFIX = "f$";
+
+  /**
+   * The prefix of the JVM names of OOCESK methods.
+   */
+  static final String METHOD_PREFIX = "m$";
+
+  /**
+   * The stack size requested for the thread running compiled code.
+   */
+  static final long STACK_SIZE = 1L << 29;
+
+  final static class CompileException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    CompileException(String msg) {
+      super(msg);
+    }
+  }
+
+  private static final String PACKAGE = "oocesk/gen/";
+
+  /* The superclass of every generated class, declaring every method name. */
+  private static final String ROOT = PACKAGE + "$Root";
+
+  private static final String OBJECT = "java/lang/Object";
+
+  private static final String OBJ = "Ljava/lang/Object;";
+
+  private static final String RUNTIME = "oocesk/JvmRuntime";
+
+  private static final String THROWN = "oocesk/JvmRuntime$Thrown";
+
+  private final Map<String, ClassDef> classes = new LinkedHashMap<String, ClassDef>();
+
+  /* The classes declaring each field name. */
+  private final Map<String, List<ClassDef>> fieldOwners = new HashMap<String, List<ClassDef>>();
+
+  /* Class files by binary name. */
+  private final Map<String, byte[]> classFiles = new HashMap<String, byte[]>();
+
+  private JvmBackend(Collection<ClassDef> classDefs) {
+    for (ClassDef c : classDefs) {
+      classes.put(c.name, c);
+      for (String field : c.fieldNames()) {
+        List<ClassDef> owners = fieldOwners.get(field);
+        if (owners == null) {
+          owners = new ArrayList<ClassDef>();
+          fieldOwners.put(field, owners);
+        }
+        owners.add(c);
+      }
+    }
+  }
+
+  /**
+   * Compiles a program.
+   *
+   * @param classDefs
+   *          every class of the program
+   * @return the compiled program
+   * @throws CompileException
+   *           if the program cannot be compiled
+   */
+  static JvmBackend compile(Collection<ClassDef> classDefs) throws CompileException {
+    JvmBackend backend = new JvmBackend(classDefs);
+    backend.compileAll();
+    return backend;
+  }
+
+  /**
+   * Runs the main method of a class, with the same outcome as
+   * {@link OOCESK#execute(ClassDef)}, on a thread of its own.
+   *
+   * @param mainClass
+   *          the class with a main method
+   * @throws RuntimeException
+   *           if the recursion of the program exhausts the stack
+   */
+  void run(final ClassDef mainClass) {
+    final Throwable[] thrown = new Throwable[1];
+    Thread thread = new Thread(null, new Runnable() {
+      public void run() {
+        try {
+          runMain(mainClass);
+        } catch (Throwable t) {
+          thrown[0] = t;
+        }
+      }
+    }, "oocesk-jvm", STACK_SIZE);
+    thread.start();
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+
+    if (thrown[0] instanceof StackOverflowError)
+      throw new RuntimeException("stack overflow: recursion too deep for compiled code");
+    if (thrown[0] instanceof RuntimeException)
+      throw (RuntimeException) thrown[0];
+    if (thrown[0] instanceof Error)
+      throw (Error) thrown[0];
+  }
+
+  private void runMain(ClassDef mainClass) {
+    MethodDef main = mainClass.lookupMethod("main");
+    Loader loader = new Loader(JvmBackend.class.getClassLoader(), classFiles);
+    Object result;
+    try {
+      Class<?> c = loader.loadClass(binaryName(mainClass.name));
+      Object thiss = c.getDeclaredConstructor().newInstance();
+      Class<?>[] types = new Class<?>[main.formals.length];
+      for (int i = 0; i < types.length; ++i)
+        types[i] = Object.class;
+      Method m = c.getMethod(METHOD_PREFIX + "main", types);
+      result = m.invoke(thiss, new Object[types.length]);
+    } catch (InvocationTargetException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof JvmRuntime.Halt)
+        return;
+      if (cause instanceof JvmRuntime.Thrown)
+        throw new RuntimeException("uncaught exception: " + ((JvmRuntime.Thrown) cause).value);
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      if (cause instanceof Error)
+        throw (Error) cause;
+      throw new RuntimeException(cause);
+    } catch (ReflectiveOperationException e) {
+      throw new RuntimeException(e);
+    }
+    throw new RuntimeException("terminated: " + result);
+  }
+
+  /**
+   * Loads the generated classes on demand.
+   */
+  private static final class Loader extends ClassLoader {
+
+    private final Map<String, byte[]> classFiles;
+
+    Loader(ClassLoader parent, Map<String, byte[]> classFiles) {
+      super(parent);
+      this.classFiles = classFiles;
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+      byte[] b = classFiles.get(name);
+      if (b == null)
+        throw new ClassNotFoundException(name);
+      return defineClass(name, b, 0, b.length);
+    }
+  }
+
+  private static String binaryName(String className) {
+    return (PACKAGE + className).replace('/', '.');
+  }
+
+  private String internalName(String className) throws CompileException {
+    if (!classes.containsKey(className))
+      throw new CompileException("no such class: " + className);
+    return PACKAGE + className;
+  }
+
+  private static String descriptor(int arity) {
+    StringBuilder desc = new StringBuilder("(");
+    for (int i = 0; i < arity; ++i)
+      desc.append(OBJ);
+    return desc.append(')').append(OBJ).toString();
+  }
+
+  /* Classes. */
+
+  private void compileAll() throws CompileException {
+    // Every name and arity that is declared or called:
+    Set<String> selectors = new LinkedHashSet<String>();
+    for (ClassDef c : classes.values()) {
+      for (MethodDef m : c.methods()) {
+        selectors.add(m.name + '/' + m.formals.length);
+        for (Stmt s = m.body; s != null; s = s.next) {
+          if (s instanceof AbstractInvokeStmt) {
+            AbstractInvokeStmt invoke = (AbstractInvokeStmt) s;
+            selectors.add(invoke.methodName + '/' + invoke.args.length);
+          }
+        }
+      }
+    }
+    compileRoot(selectors);
+    for (ClassDef c : classes.values())
+      compileClass(c);
+  }
+
+  private void compileRoot(Set<String> selectors) {
+    JvmClassWriter w = new JvmClassWriter(ROOT, OBJECT);
+    constructor(w, OBJECT);
+    for (String selector : selectors) {
+      int slash = selector.lastIndexOf('/');
+      String name = selector.substring(0, slash);
+      int arity = Integer.parseInt(selector.substring(slash + 1));
+      Code code = w.method(METHOD_PREFIX + name, descriptor(arity), arity + 1);
+      code.pushString(name);
+      code.invoke(INVOKESTATIC, RUNTIME, "noSuchMethod", "(Ljava/lang/String;)Ljava/lang/Throwable;");
+      code.op(ATHROW, -1);
+      code.end();
+    }
+    classFiles.put(binaryName("$Root"), w.toByteArray());
+  }
+
+  private String superName(ClassDef c) {
+    return classes.containsKey(c.parentClassName) ? PACKAGE + c.parentClassName : ROOT;
+  }
+
+  /**
+   * Checks whether a subclass of a class declares a method of the given name.
+   */
+  private boolean isOverridden(ClassDef c, String methodName) {
+    for (ClassDef d : classes.values()) {
+      if (d == c || !d.isSubclassOf(c))
+        continue;
+      for (MethodDef m : d.methods()) {
+        if (m.name.equals(methodName))
+          return true;
+      }
+    }
+    return false;
+  }
+
+  private void compileClass(ClassDef c) throws CompileException {
+    JvmClassWriter w = new JvmClassWriter(PACKAGE + c.name, superName(c));
+    constructor(w, superName(c));
+    for (String field : c.fieldNames())
+      w.field(FIELD_PREFIX + field, OBJ);
+    for (MethodDef m : c.methods())
+      new MethodCompiler(w, c, m).compile();
+    classFiles.put(binaryName(c.name), w.toByteArray());
+  }
+
+  private static void constructor(JvmClassWriter w, String superName) {
+    Code code = w.method("<init>", "()V", 1);
+    code.aload(0);
+    code.invoke(INVOKESPECIAL, superName, "<init>", "()V");
+    code.op(RETURN, 0);
+    code.end();
+  }
+
+  /**
+   * Finds the class whose JVM field holds a field of the given class's
+   * objects, or of any object if the class is null.
+   *
+   * @return the declaring class, or null if it is not known statically
+   */
+  private ClassDef fieldOwner(String field, ClassDef receiverClass) {
+    if (receiverClass != null) {
+      for (ClassDef c = receiverClass; c != null; c = classes.get(c.parentClassName)) {
+        if (c.fieldNames().contains(field))
+          return c;
+      }
+    }
+    List<ClassDef> owners = fieldOwners.get(field);
+    return owners != null && owners.size() == 1 ? owners.get(0) : null;
+  }
+
+  /* Methods. */
+
+  private final class MethodCompiler {
+
+    private final JvmClassWriter w;
+
+    private final ClassDef classs;
+
+    private final MethodDef method;
+
+    private final List<Stmt> stmts;
+
+    /* The handlers in force at each statement. */
+    private final HandlerTable table;
+
+    private Label[] labels;
+
+    /* The start of the method, where a tail call to itself jumps. */
+    private final Label entry = new Label();
+
+    private Code code;
+
+    MethodCompiler(JvmClassWriter w, ClassDef classs, MethodDef method) throws CompileException {
+      this.w = w;
+      this.classs = classs;
+      this.method = method;
+      this.table = HandlerTable.of(method);
+      if (table == null)
+        throw new CompileException("no static handler table for " + method.name);
+      this.stmts = table.stmts();
+    }
+
+    /* Registers live in JVM locals after the parameters; $this is local 0. */
+    private int local(int slot) {
+      return slot == FrameLayout.THIS_SLOT ? 0 : method.formals.length + slot;
+    }
+
+    private int target(Stmt labeled) {
+      return table.indexOf(labeled);
+    }
+
+    void compile() throws CompileException {
+      int arity = method.formals.length;
+      code = w.method(METHOD_PREFIX + method.name, descriptor(arity), arity + method.frameSize);
+
+      // Clear the registers and move the arguments into theirs:
+      code.bind(entry);
+      for (int slot = 1; slot < method.frameSize; ++slot) {
+        code.op(ACONST_NULL, 1);
+        code.astore(local(slot));
+      }
+      for (int i = 0; i < arity; ++i) {
+        code.aload(1 + i);
+        code.astore(local(method.formalSlots[i]));
+      }
+
+      labels = new Label[stmts.size()];
+      for (int i = 0; i < labels.length; ++i)
+        labels[i] = new Label();
+
+      // The body, with one exception range per run of statements sharing handlers:
+      Map<Handlers, Label> stubs = new LinkedHashMap<Handlers, Label>();
+      Handlers current = null;
+      Label start = null;
+      for (int i = 0; i < stmts.size(); ++i) {
+        code.bind(labels[i]);
+        if (!table.isReachable(i))
+          continue;
+        if (start == null || !Handlers.same(table.at(i), current)) {
+          closeRange(start, current, stubs);
+          current = table.at(i);
+          start = new Label();
+          code.bind(start);
+        }
+        code.depth(0);
+        compileStmt(stmts.get(i), i);
+      }
+      closeRange(start, current, stubs);
+
+      // The handler dispatch code:
+      for (Map.Entry<Handlers, Label> e : stubs.entrySet())
+        compileDispatch(e.getKey(), e.getValue());
+
+      code.end();
+    }
+
+    private void closeRange(Label start, Handlers current, Map<Handlers, Label> stubs) {
+      if (start == null || current == null)
+        return;
+      Label end = new Label();
+      code.bind(end);
+      Label stub = null;
+      for (Map.Entry<Handlers, Label> e : stubs.entrySet()) {
+        if (Handlers.same(e.getKey(), current))
+          stub = e.getValue();
+      }
+      if (stub == null) {
+        stub = new Label();
+        stubs.put(current, stub);
+      }
+      code.handler(start, end, stub, THROWN);
+    }
+
+    /**
+     * Catches an OOCESK exception and jumps to the first handler in the stack
+     * that matches it, or throws it on to the caller.
+     */
+    private void compileDispatch(Handlers stack, Label stub) {
+      int ex = local(FrameLayout.EX_SLOT);
+      code.bind(stub);
+      code.depth(1);
+      code.invoke(INVOKESTATIC, RUNTIME, "caught", "(Ljava/lang/Throwable;)" + OBJ);
+      code.astore(ex);
+      for (Handlers h = stack; h != null; h = h.below) {
+        if (!classes.containsKey(h.top.className))
+          continue;
+        code.aload(ex);
+        code.ref(INSTANCEOF, w.classRef(PACKAGE + h.top.className), 0);
+        code.branch(IFNE, labels[target(h.top.target)]);
+      }
+      code.aload(ex);
+      code.invoke(INVOKESTATIC, RUNTIME, "raise", "(" + OBJ + ")Ljava/lang/Throwable;");
+      code.op(ATHROW, -1);
+    }
+
+    /* Statements: each starts and ends with an empty stack. */
+
+    private void compileStmt(Stmt s, int index) throws CompileException {
+      if (s instanceof GotoStmt) {
+        GotoStmt stmt = (GotoStmt) s;
+        code.branch(GOTO, labels[target(stmt.target)]);
+        return;
+      }
+
+      if (s instanceof IfStmt) {
+        IfStmt stmt = (IfStmt) s;
+        compileCondition(stmt.condition);
+        code.branch(IFNE, labels[target(stmt.target)]);
+      }
+
+      else if (s instanceof AssignAExpStmt) {
+        AssignAExpStmt stmt = (AssignAExpStmt) s;
+        compileExp(stmt.rhs);
+        store(stmt.lhsSlot);
+      }
+
+      else if (s instanceof NewStmt) {
+        NewStmt stmt = (NewStmt) s;
+        String c = internalName(stmt.className);
+        code.ref(NEW, w.classRef(c), 1);
+        code.op(DUP, 1);
+        code.invoke(INVOKESPECIAL, c, "<init>", "()V");
+        store(stmt.lhsSlot);
+      }
+
+      else if (s instanceof InvokeStmt && isSelfTailCall((InvokeStmt) s, index)) {
+        // Pass the arguments in the parameters and start over:
+        InvokeStmt stmt = (InvokeStmt) s;
+        for (AExp arg : stmt.args)
+          compileExp(arg);
+        for (int i = stmt.args.length; i > 0; --i)
+          code.astore(i);
+        code.branch(GOTO, entry);
+        return;
+      }
+
+      else if (s instanceof InvokeStmt) {
+        InvokeStmt stmt = (InvokeStmt) s;
+        compileExp(stmt.object);
+        code.ref(CHECKCAST, w.classRef(ROOT), 0);
+        for (AExp arg : stmt.args)
+          compileExp(arg);
+        code.invoke(INVOKEVIRTUAL, ROOT, METHOD_PREFIX + stmt.methodName,
+            descriptor(stmt.args.length));
+        store(stmt.lhsSlot);
+      }
+
+      else if (s instanceof InvokeSuperStmt) {
+        InvokeSuperStmt stmt = (InvokeSuperStmt) s;
+        code.aload(0);
+        for (AExp arg : stmt.args)
+          compileExp(arg);
+        code.invoke(INVOKESPECIAL, superName(classs), METHOD_PREFIX + stmt.methodName,
+            descriptor(stmt.args.length));
+        store(stmt.lhsSlot);
+      }
+
+      else if (s instanceof ReturnStmt) {
+        compileExp(((ReturnStmt) s).result);
+        code.op(ARETURN, -1);
+        return;
+      }
+
+      else if (s instanceof PrintStmt) {
+        for (AExp arg : ((PrintStmt) s).args) {
+          compileExp(arg);
+          code.invoke(INVOKESTATIC, RUNTIME, "print", "(" + OBJ + ")V");
+        }
+      }
+
+      else if (s instanceof FieldAssignStmt) {
+        FieldAssignStmt stmt = (FieldAssignStmt) s;
+        ClassDef owner = fieldOwner(stmt.field, staticClass(stmt.object));
+        compileExp(stmt.object);
+        if (owner != null) {
+          code.ref(CHECKCAST, w.classRef(PACKAGE + owner.name), 0);
+          compileExp(stmt.rhs);
+          code.ref(PUTFIELD, w.fieldRef(PACKAGE + owner.name, FIELD_PREFIX + stmt.field, OBJ), -2);
+        } else {
+          code.pushString(stmt.field);
+          compileExp(stmt.rhs);
+          code.invoke(INVOKESTATIC, RUNTIME, "setField", "(" + OBJ + "Ljava/lang/String;" + OBJ
+              + ")V");
+        }
+      }
+
+      else if (s instanceof ThrowStmt) {
+        compileExp(((ThrowStmt) s).exception);
+        code.invoke(INVOKESTATIC, RUNTIME, "raise", "(" + OBJ + ")Ljava/lang/Throwable;");
+        code.op(ATHROW, -1);
+        return;
+      }
+
+      else if (s instanceof MoveExceptionStmt) {
+        code.aload(local(FrameLayout.EX_SLOT));
+        store(((MoveExceptionStmt) s).registerSlot);
+      }
+
+      // Labels, skips and handler pushes and pops generate no code.
+
+      // Falling off the end of a method halts the machine:
+      if (s.next == null) {
+        code.invoke(INVOKESTATIC, RUNTIME, "halt", "()Ljava/lang/Throwable;");
+        code.op(ATHROW, -1);
+      }
+    }
+
+    /**
+     * Checks whether a call in tail position with no handlers in force always
+     * calls this method on this receiver.
+     */
+    private boolean isSelfTailCall(InvokeStmt call, int index) {
+      if (!call.tail || table.at(index) != null)
+        return false;
+      boolean onThis = call.object instanceof ThisExp
+          || (call.object instanceof RegisterExp
+              && ((RegisterExp) call.object).slot == FrameLayout.THIS_SLOT);
+      return onThis && call.methodName.equals(method.name)
+          && call.args.length == method.formals.length && !isOverridden(classs, method.name);
+    }
+
+    private void store(int slot) throws CompileException {
+      if (slot == FrameLayout.THIS_SLOT)
+        throw new CompileException("assignment to $this in " + method.name);
+      code.astore(local(slot));
+    }
+
+    /* Expressions: each pushes one value. */
+
+    private void compileCondition(AExp condition) throws CompileException {
+      if (condition instanceof AtomicOpExp && ((AtomicOpExp) condition).op == PrimOp.EQ) {
+        AExp[] args = ((AtomicOpExp) condition).args;
+        compileExp(args[0]);
+        compileExp(args[1]);
+        code.invoke(INVOKESTATIC, RUNTIME, "eqInts", "(" + OBJ + OBJ + ")Z");
+      } else {
+        compileExp(condition);
+        code.invoke(INVOKESTATIC, RUNTIME, "truth", "(" + OBJ + ")Z");
+      }
+    }
+
+    /* The class of the value of an expression, if it is known statically. */
+    private ClassDef staticClass(AExp exp) {
+      return exp instanceof ThisExp ? classs : null;
+    }
+
+    private void compileExp(AExp exp) throws CompileException {
+      if (exp instanceof IntExp) {
+        code.pushInt(((IntExp) exp).value);
+        code.invoke(INVOKESTATIC, RUNTIME, "intValue", "(I)" + OBJ);
+      }
+
+      else if (exp instanceof BooleanExp) {
+        code.pushInt(((BooleanExp) exp).value ? 1 : 0);
+        code.invoke(INVOKESTATIC, RUNTIME, "bool", "(Z)" + OBJ);
+      }
+
+      else if (exp instanceof NullExp) {
+        code.invoke(INVOKESTATIC, RUNTIME, "nullValue", "()" + OBJ);
+      }
+
+      else if (exp instanceof VoidExp) {
+        code.invoke(INVOKESTATIC, RUNTIME, "voidValue", "()" + OBJ);
+      }
+
+      else if (exp instanceof ThisExp) {
+        code.aload(0);
+      }
+
+      else if (exp instanceof RegisterExp) {
+        code.aload(local(((RegisterExp) exp).slot));
+      }
+
+      else if (exp instanceof AtomicOpExp) {
+        compileOp((AtomicOpExp) exp);
+      }
+
+      else if (exp instanceof InstanceOfExp) {
+        InstanceOfExp e = (InstanceOfExp) exp;
+        compileExp(e.object);
+        if (classes.containsKey(e.className)) {
+          code.ref(INSTANCEOF, w.classRef(PACKAGE + e.className), 0);
+        } else {
+          // No object is an instance of an undefined class:
+          code.op(POP, -1);
+          code.pushInt(0);
+        }
+        code.invoke(INVOKESTATIC, RUNTIME, "bool", "(Z)" + OBJ);
+      }
+
+      else if (exp instanceof FieldExp) {
+        FieldExp e = (FieldExp) exp;
+        ClassDef owner = fieldOwner(e.field, staticClass(e.object));
+        compileExp(e.object);
+        if (owner != null) {
+          code.ref(CHECKCAST, w.classRef(PACKAGE + owner.name), 0);
+          code.ref(GETFIELD, w.fieldRef(PACKAGE + owner.name, FIELD_PREFIX + e.field, OBJ), 0);
+        } else {
+          code.pushString(e.field);
+          code.invoke(INVOKESTATIC, RUNTIME, "getField", "(" + OBJ + "Ljava/lang/String;)" + OBJ);
+        }
+      }
+
+      else {
+        throw new CompileException("cannot compile expression: "
+            + exp.getClass().getName());
+      }
+    }
+
+    private void compileOp(AtomicOpExp exp) throws CompileException {
+      AExp[] args = exp.args;
+      switch (exp.op) {
+      case ADD:
+      case MUL:
+        String name = exp.op == PrimOp.ADD ? "add" : "mul";
+        if (args.length == 0) {
+          code.pushInt(exp.op == PrimOp.ADD ? 0 : 1);
+          code.invoke(INVOKESTATIC, RUNTIME, "intValue", "(I)" + OBJ);
+          return;
+        }
+        compileExp(args[0]);
+        for (int i = 1; i < args.length; ++i) {
+          compileExp(args[i]);
+          code.invoke(INVOKESTATIC, RUNTIME, name, "(" + OBJ + OBJ + ")" + OBJ);
+        }
+        return;
+      case SUB:
+      case EQ:
+        compileExp(args[0]);
+        compileExp(args[1]);
+        code.invoke(INVOKESTATIC, RUNTIME, exp.op == PrimOp.SUB ? "sub" : "eq", "(" + OBJ + OBJ
+            + ")" + OBJ);
+        return;
+      default:
+        throw new CompileException("unhandled atomic op: " + exp.op);
+      }
+    }
+  }
+}
@@ -0,0 +1,437 @@
+package oocesk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A minimal writer for JVM class files.
+ *
+ * It supports exactly what the bytecode backend emits: public classes with
+ * public instance fields and methods, a handful of instructions and exception
+ * tables. Class files are written in version 49, which the JVM verifies by
+ * type inference, so no stack map frames are needed.
+ */
+final class JvmClassWriter {
+
+  /* Access flags. */
+  static final int ACC_PUBLIC = 0x0001;
+  static final int ACC_SUPER = 0x0020;
+
+  /* Opcodes. */
+  static final int ACONST_NULL = 0x01;
+  static final int BIPUSH = 0x10;
+  static final int SIPUSH = 0x11;
+  static final int LDC_W = 0x13;
+  static final int ALOAD = 0x19;
+  static final int ASTORE = 0x3a;
+  static final int POP = 0x57;
+  static final int DUP = 0x59;
+  static final int IFEQ = 0x99;
+  static final int IFNE = 0x9a;
+  static final int GOTO = 0xa7;
+  static final int ARETURN = 0xb0;
+  static final int RETURN = 0xb1;
+  static final int GETFIELD = 0xb4;
+  static final int PUTFIELD = 0xb5;
+  static final int INVOKEVIRTUAL = 0xb6;
+  static final int INVOKESPECIAL = 0xb7;
+  static final int INVOKESTATIC = 0xb8;
+  static final int NEW = 0xbb;
+  static final int ATHROW = 0xbf;
+  static final int CHECKCAST = 0xc0;
+  static final int INSTANCEOF = 0xc1;
+
+  private static final int VERSION = 49;
+
+  /* The constant pool. */
+  private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+
+  private final DataOutputStream poolOut = new DataOutputStream(pool);
+
+  private final HashMap<String, Integer> poolIndex = new HashMap<String, Integer>();
+
+  private int poolCount = 1;
+
+  private final int thisClass;
+
+  private final int superClass;
+
+  private final List<byte[]> fields = new ArrayList<byte[]>();
+
+  private final List<byte[]> methods = new ArrayList<byte[]>();
+
+  /**
+   * Starts a public class.
+   *
+   * @param name
+   *          the internal name of the class, such as "a/b/C"
+   * @param superName
+   *          the internal name of its superclass
+   */
+  JvmClassWriter(String name, String superName) {
+    this.thisClass = classRef(name);
+    this.superClass = classRef(superName);
+  }
+
+  /* Constant pool entries, shared when equal. */
+
+  private int constant(String key, int tag, int a, int b, String utf8) {
+    Integer index = poolIndex.get(key);
+    if (index != null)
+      return index;
+    try {
+      poolOut.writeByte(tag);
+      switch (tag) {
+      case 1:
+        poolOut.writeUTF(utf8);
+        break;
+      case 3:
+        poolOut.writeInt(a);
+        break;
+      case 7:
+      case 8:
+        poolOut.writeShort(a);
+        break;
+      default:
+        poolOut.writeShort(a);
+        poolOut.writeShort(b);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    index = poolCount++;
+    if (poolCount > 0xffff)
+      throw new RuntimeException("constant pool overflow");
+    poolIndex.put(key, index);
+    return index;
+  }
+
+  int utf8(String s) {
+    return constant("U" + s, 1, 0, 0, s);
+  }
+
+  int integer(int value) {
+    return constant("I" + value, 3, value, 0, null);
+  }
+
+  int string(String s) {
+    return constant("S" + s, 8, utf8(s), 0, null);
+  }
+
+  int classRef(String name) {
+    return constant("C" + name, 7, utf8(name), 0, null);
+  }
+
+  private int nameAndType(String name, String desc) {
+    return constant("N" + name + ' ' + desc, 12, utf8(name), utf8(desc), null);
+  }
+
+  int fieldRef(String owner, String name, String desc) {
+    return constant("F" + owner + '.' + name + desc, 9, classRef(owner), nameAndType(name, desc),
+        null);
+  }
+
+  int methodRef(String owner, String name, String desc) {
+    return constant("M" + owner + '.' + name + desc, 10, classRef(owner), nameAndType(name, desc),
+        null);
+  }
+
+  /* Members. */
+
+  /**
+   * Adds a public instance field.
+   */
+  void field(String name, String desc) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeShort(ACC_PUBLIC);
+      out.writeShort(utf8(name));
+      out.writeShort(utf8(desc));
+      out.writeShort(0);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    fields.add(bytes.toByteArray());
+  }
+
+  /**
+   * Starts a public instance method; its code is added when
+   * {@link Code#end()} is called.
+   */
+  Code method(String name, String desc, int maxLocals) {
+    return new Code(name, desc, maxLocals);
+  }
+
+  /**
+   * Returns the class file.
+   */
+  byte[] toByteArray() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeInt(0xcafebabe);
+      out.writeShort(0);
+      out.writeShort(VERSION);
+      out.writeShort(poolCount);
+      pool.writeTo(out);
+      out.writeShort(ACC_PUBLIC | ACC_SUPER);
+      out.writeShort(thisClass);
+      out.writeShort(superClass);
+      out.writeShort(0);
+      out.writeShort(fields.size());
+      for (byte[] f : fields)
+        out.write(f);
+      out.writeShort(methods.size());
+      for (byte[] m : methods)
+        out.write(m);
+      out.writeShort(0);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * A position in the code of a method, bound once and referenced by any
+   * number of branches.
+   */
+  static final class Label {
+    int position = -1;
+  }
+
+  /**
+   * The code of one method.
+   *
+   * The stack depth is tracked as instructions are added, so that the maximum
+   * can be computed; code at a label or handler must set the depth it expects
+   * with {@link #depth(int)}.
+   */
+  final class Code {
+
+    private final String name;
+
+    private final String desc;
+
+    private final int maxLocals;
+
+    private byte[] code = new byte[64];
+
+    private int length;
+
+    private int depth;
+
+    private int maxDepth;
+
+    /* Branch instruction positions and the labels they jump to. */
+    private final List<Integer> branches = new ArrayList<Integer>();
+
+    private final List<Label> targets = new ArrayList<Label>();
+
+    /* Exception handlers: the start, end and handler labels, and the catch type. */
+    private final List<Label[]> handlers = new ArrayList<Label[]>();
+
+    private final List<Integer> catchTypes = new ArrayList<Integer>();
+
+    private Code(String name, String desc, int maxLocals) {
+      this.name = name;
+      this.desc = desc;
+      this.maxLocals = maxLocals;
+    }
+
+    /**
+     * Returns the offset of the next instruction.
+     */
+    int position() {
+      return length;
+    }
+
+    /**
+     * Sets the current stack depth, at the start of a block.
+     */
+    void depth(int depth) {
+      this.depth = depth;
+      maxDepth = Math.max(maxDepth, depth);
+    }
+
+    private void stack(int delta) {
+      depth(depth + delta);
+    }
+
+    private void u1(int b) {
+      if (length == code.length) {
+        byte[] grown = new byte[2 * code.length];
+        System.arraycopy(code, 0, grown, 0, length);
+        code = grown;
+      }
+      code[length++] = (byte) b;
+    }
+
+    private void u2(int s) {
+      u1(s >> 8);
+      u1(s);
+    }
+
+    void op(int opcode, int stackDelta) {
+      u1(opcode);
+      stack(stackDelta);
+    }
+
+    void aload(int local) {
+      if (local < 4) {
+        u1(0x2a + local);
+      } else {
+        u1(ALOAD);
+        localIndex(local);
+      }
+      stack(1);
+    }
+
+    void astore(int local) {
+      if (local < 4) {
+        u1(0x4b + local);
+      } else {
+        u1(ASTORE);
+        localIndex(local);
+      }
+      stack(-1);
+    }
+
+    private void localIndex(int local) {
+      if (local > 0xff)
+        throw new RuntimeException("too many locals");
+      u1(local);
+    }
+
+    void pushInt(int value) {
+      if (value >= -1 && value <= 5) {
+        u1(0x03 + value);
+      } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+        u1(BIPUSH);
+        u1(value);
+      } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+        u1(SIPUSH);
+        u2(value);
+      } else {
+        u1(LDC_W);
+        u2(integer(value));
+      }
+      stack(1);
+    }
+
+    void pushString(String s) {
+      u1(LDC_W);
+      u2(string(s));
+      stack(1);
+    }
+
+    /**
+     * Adds an instruction with a constant pool operand.
+     */
+    void ref(int opcode, int index, int stackDelta) {
+      u1(opcode);
+      u2(index);
+      stack(stackDelta);
+    }
+
+    void invoke(int opcode, String owner, String name, String desc) {
+      int args = argumentCount(desc);
+      boolean returns = !desc.endsWith(")V");
+      int delta = (returns ? 1 : 0) - args - (opcode == INVOKESTATIC ? 0 : 1);
+      ref(opcode, methodRef(owner, name, desc), delta);
+    }
+
+    void branch(int opcode, Label target) {
+      branches.add(length);
+      targets.add(target);
+      u1(opcode);
+      u2(0);
+      stack(opcode == GOTO ? 0 : -1);
+    }
+
+    void bind(Label label) {
+      label.position = length;
+    }
+
+    /**
+     * Adds an exception handler for the given range.
+     */
+    void handler(Label start, Label end, Label handler, String type) {
+      handlers.add(new Label[] { start, end, handler });
+      catchTypes.add(classRef(type));
+    }
+
+    /**
+     * Finishes the method and adds it to the class.
+     */
+    void end() {
+      for (int i = 0; i < branches.size(); ++i) {
+        int at = branches.get(i);
+        int offset = targets.get(i).position - at;
+        if (targets.get(i).position < 0)
+          throw new RuntimeException("unbound label in " + name);
+        if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE)
+          throw new RuntimeException("method too large: " + name);
+        code[at + 1] = (byte) (offset >> 8);
+        code[at + 2] = (byte) offset;
+      }
+
+      // Empty ranges are not allowed in the exception table:
+      ByteArrayOutputStream table = new ByteArrayOutputStream();
+      DataOutputStream tableOut = new DataOutputStream(table);
+      int entries = 0;
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      try {
+        for (int i = 0; i < handlers.size(); ++i) {
+          Label[] labels = handlers.get(i);
+          if (labels[0].position >= labels[1].position)
+            continue;
+          tableOut.writeShort(labels[0].position);
+          tableOut.writeShort(labels[1].position);
+          tableOut.writeShort(labels[2].position);
+          tableOut.writeShort(catchTypes.get(i));
+          entries++;
+        }
+
+        out.writeShort(ACC_PUBLIC);
+        out.writeShort(utf8(name));
+        out.writeShort(utf8(desc));
+        out.writeShort(1);
+        out.writeShort(utf8("Code"));
+        out.writeInt(12 + length + table.size());
+        out.writeShort(maxDepth);
+        out.writeShort(maxLocals);
+        out.writeInt(length);
+        out.write(code, 0, length);
+        out.writeShort(entries);
+        table.writeTo(out);
+        out.writeShort(0);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      methods.add(bytes.toByteArray());
+    }
+  }
+
+  /**
+   * Counts the arguments of a method descriptor made of reference and int
+   * types.
+   */
+  private static int argumentCount(String desc) {
+    int count = 0;
+    for (int i = 1; desc.charAt(i) != ')'; ++i) {
+      char c = desc.charAt(i);
+      if (c == 'L')
+        i = desc.indexOf(';', i);
+      else if (c == '[')
+        continue;
+      count++;
+    }
+    return count;
+  }
+}
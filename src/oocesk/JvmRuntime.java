@@ -0,0 +1,140 @@
+package oocesk;
+
+/**
+ * The run-time support called from classes generated by the bytecode backend.
+ *
+ * Generated classes live in their own class loader and so can only reach
+ * public members; every OOCESK value they handle is typed as Object, and all
+ * operations on values go through the static methods here.
+ */
+public final class JvmRuntime {
+
+  private JvmRuntime() {}
+
+  /**
+   * An OOCESK exception in flight. It carries no stack trace, since OOCESK
+   * programs throw exceptions for control flow.
+   */
+  public static final class Thrown extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The OOCESK value being thrown.
+     */
+    public final Object value;
+
+    Thrown(Object value) {
+      super(null, null, false, false);
+      this.value = value;
+    }
+  }
+
+  /**
+   * Thrown when control falls off the end of a method, which halts the
+   * machine.
+   */
+  public static final class Halt extends Error {
+
+    private static final long serialVersionUID = 1L;
+
+    Halt() {
+      super(null, null, false, false);
+    }
+  }
+
+  private static final Halt HALT = new Halt();
+
+  public static Object intValue(int value) {
+    return IntValue.of(value);
+  }
+
+  public static Object bool(boolean value) {
+    return Value.from(value);
+  }
+
+  public static Object nullValue() {
+    return NullValue.VALUE;
+  }
+
+  public static Object voidValue() {
+    return VoidValue.VALUE;
+  }
+
+  public static boolean truth(Object value) {
+    return value != FalseValue.VALUE;
+  }
+
+  public static Object add(Object a, Object b) {
+    return IntValue.of(((Value) a).toInt() + ((Value) b).toInt());
+  }
+
+  public static Object sub(Object a, Object b) {
+    return IntValue.of(((Value) a).toInt() - ((Value) b).toInt());
+  }
+
+  public static Object mul(Object a, Object b) {
+    return IntValue.of(((Value) a).toInt() * ((Value) b).toInt());
+  }
+
+  public static boolean eqInts(Object a, Object b) {
+    return ((Value) a).toInt() == ((Value) b).toInt();
+  }
+
+  public static Object eq(Object a, Object b) {
+    return Value.from(eqInts(a, b));
+  }
+
+  public static void print(Object value) {
+    // Objects print as in the interpreter:
+    System.out.println(value instanceof Value ? ((Value) value).toPrint() : "TODO");
+  }
+
+  /**
+   * Wraps a value to be thrown.
+   */
+  public static Throwable raise(Object value) {
+    return new Thrown(value);
+  }
+
+  /**
+   * Unwraps a caught exception.
+   */
+  public static Object caught(Throwable t) {
+    return ((Thrown) t).value;
+  }
+
+  public static Throwable halt() {
+    return HALT;
+  }
+
+  /**
+   * Reads a field whose declaring class is not known statically.
+   */
+  public static Object getField(Object object, String field) {
+    try {
+      return object.getClass().getField(JvmBackend.FIELD_PREFIX + field).get(object);
+    } catch (NoSuchFieldException e) {
+      throw new RuntimeException("no such field: " + field);
+    } catch (IllegalAccessException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Writes a field whose declaring class is not known statically.
+   */
+  public static void setField(Object object, String field, Object value) {
+    try {
+      object.getClass().getField(JvmBackend.FIELD_PREFIX + field).set(object, value);
+    } catch (NoSuchFieldException e) {
+      throw new RuntimeException("no such field: " + field);
+    } catch (IllegalAccessException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public static Throwable noSuchMethod(String methodName) {
+    return new RuntimeException("no such method: " + methodName);
+  }
+}
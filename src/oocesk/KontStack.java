@@ -0,0 +1,261 @@
+package oocesk;
+
+import java.util.List;
+
+/**
+ * The top of a running machine's continuation, held in arrays.
+ *
+ * Return points and handlers pushed as the machine runs are entries here
+ * rather than {@link Kont} objects: pushing or popping one just moves an index.
+ * The arrays grow a segment at a time, so entries never move once written.
+ * Beneath the stack lies the machine's persistent continuation, which takes
+ * over whenever the stack runs empty.
+ *
+ * Capturing the stack as a continuation, for a snapshot or an analysis,
+ * copies its entries out into continuation objects, which then become the
+ * persistent continuation; the stack is left empty, so a second capture only
+ * copies what was pushed since the first.
+ */
+final class KontStack {
+
+  /**
+   * The number of entries in a segment.
+   */
+  static final int SEGMENT_SIZE = 256;
+
+  /**
+   * A segment of entries. An entry is a return point if it has a frame
+   * pointer and a handler if it has none.
+   */
+  private static final class Segment {
+    final Segment below;
+
+    /* A popped segment, kept for the next push. */
+    Segment above;
+
+    /* The statement at which to resume, or the handler's target. */
+    final Stmt[] stmts = new Stmt[SEGMENT_SIZE];
+
+    /* The frame pointer to restore, or null for a handler. */
+    final FramePointer[] fps = new FramePointer[SEGMENT_SIZE];
+
+    /* The frame slot awaiting the result of a return point. */
+    final int[] slots = new int[SEGMENT_SIZE];
+
+    /* The static handlers of a return point, or the class a handler catches. */
+    final Object[] tags = new Object[SEGMENT_SIZE];
+
+    Segment(Segment below) {
+      this.below = below;
+    }
+  }
+
+  private Segment top = new Segment(null);
+
+  /* The number of entries in the top segment. */
+  private int size;
+
+  /**
+   * Checks whether the stack holds no entries.
+   */
+  boolean isEmpty() {
+    return size == 0 && top.below == null;
+  }
+
+  /**
+   * Checks whether the topmost entry is a handler.
+   *
+   * @param below
+   *          the continuation beneath the stack, consulted if it is empty
+   */
+  boolean isHandlerOnTop(Kont below) {
+    if (isEmpty())
+      return below instanceof HandlerKont;
+    return top().fps[size - 1] == null;
+  }
+
+  /**
+   * Pushes a return point.
+   *
+   * @param slot
+   *          the frame slot of the register awaiting the result
+   * @param stmt
+   *          the statement at which to resume
+   * @param fp
+   *          the frame pointer to restore
+   * @param catches
+   *          the static handlers of the caller in force at the call, or null
+   */
+  void pushReturn(int slot, Stmt stmt, FramePointer fp, Catch catches) {
+    int i = reserve();
+    top.stmts[i] = stmt;
+    top.fps[i] = fp;
+    top.slots[i] = slot;
+    top.tags[i] = catches;
+  }
+
+  /**
+   * Pushes an exception handler.
+   *
+   * @param classs
+   *          the class of exceptions caught, or null if it is undefined
+   * @param target
+   *          the statement to which to jump after catching an exception
+   */
+  void pushHandler(ClassDef classs, Stmt target) {
+    int i = reserve();
+    top.stmts[i] = target;
+    top.fps[i] = null;
+    top.tags[i] = classs;
+  }
+
+  /**
+   * Pops the topmost handler.
+   *
+   * @param m
+   *          the machine whose continuation lies beneath the stack
+   */
+  void popHandler(Machine m) {
+    if (isEmpty()) {
+      m.kont = m.kont.popHandler();
+      return;
+    }
+    Segment s = top();
+    if (s.fps[size - 1] != null)
+      throw new RuntimeException("no handler to pop!");
+    clear(s, pop());
+  }
+
+  /**
+   * Returns a value to the topmost return point, popping any handlers in the
+   * way.
+   *
+   * @see Kont#apply(Value, Machine)
+   */
+  void apply(Value returnValue, Machine m) {
+    while (!isEmpty()) {
+      Segment s = top();
+      int i = pop();
+      FramePointer fp = s.fps[i];
+      Stmt stmt = s.stmts[i];
+      clear(s, i);
+      if (fp == null)
+        continue;
+
+      m.store = m.store.bind(fp, s.slots[i], returnValue);
+      m.stmt = stmt;
+      m.fp = fp;
+      return;
+    }
+    m.kont.apply(returnValue, m);
+  }
+
+  /**
+   * Throws an exception to the topmost handler that catches it, popping
+   * everything in the way.
+   *
+   * @see Kont#handle(ObjectValue, Machine)
+   */
+  void handle(ObjectValue exception, Machine m) {
+    while (!isEmpty()) {
+      Segment s = top();
+      int i = pop();
+      FramePointer fp = s.fps[i];
+      Stmt stmt = s.stmts[i];
+      Object tag = s.tags[i];
+      clear(s, i);
+
+      if (fp == null) {
+        if (exception.isInstanceOf((ClassDef) tag)) {
+          m.store = m.store.bind(m.fp, FrameLayout.EX_SLOT, exception);
+          m.stmt = stmt;
+          return;
+        }
+        continue;
+      }
+
+      // Pick up the caller's pointer and try its static handlers:
+      m.fp = fp;
+      if (Catch.handle((Catch) tag, exception, m))
+        return;
+    }
+    m.kont.handle(exception, m);
+  }
+
+  /**
+   * Copies the entries of the stack into continuation objects and empties it.
+   *
+   * @param below
+   *          the continuation beneath the stack
+   * @return the continuation the stack and the one beneath it make up
+   */
+  Kont capture(Kont below) {
+    Kont kont = captureFrom(top, size, below);
+    while (top.below != null)
+      top = top.below;
+    size = 0;
+    return kont;
+  }
+
+  private static Kont captureFrom(Segment s, int n, Kont below) {
+    Kont kont = s.below == null ? below : captureFrom(s.below, SEGMENT_SIZE, below);
+    for (int i = 0; i < n; ++i) {
+      if (s.fps[i] == null)
+        kont = new HandlerKont((ClassDef) s.tags[i], s.stmts[i], kont);
+      else
+        kont = new AssignKont(s.slots[i], s.stmts[i], s.fps[i], (Catch) s.tags[i], kont);
+      clear(s, i);
+    }
+    return kont;
+  }
+
+  /**
+   * Adds the frame pointers of the return points on the stack to the given
+   * list.
+   *
+   * @param roots
+   *          the list of garbage-collection roots
+   */
+  void addRoots(List<Pointer> roots) {
+    int n = size;
+    for (Segment s = top; s != null; s = s.below, n = SEGMENT_SIZE) {
+      for (int i = 0; i < n; ++i) {
+        if (s.fps[i] != null)
+          roots.add(s.fps[i]);
+      }
+    }
+  }
+
+  /* Makes room for an entry, returning its index in the top segment. */
+  private int reserve() {
+    if (size == SEGMENT_SIZE) {
+      Segment above = top.above;
+      if (above == null)
+        above = top.above = new Segment(top);
+      top = above;
+      size = 0;
+    }
+    return size++;
+  }
+
+  /* Returns the segment holding the topmost entry, the stack being nonempty. */
+  private Segment top() {
+    if (size == 0) {
+      top = top.below;
+      size = SEGMENT_SIZE;
+    }
+    return top;
+  }
+
+  /* Pops the topmost entry, returning its index in the segment from top(). */
+  private int pop() {
+    return --size;
+  }
+
+  /* Drops the references of a popped entry, so they can be collected. */
+  private static void clear(Segment s, int i) {
+    s.stmts[i] = null;
+    s.fps[i] = null;
+    s.tags[i] = null;
+  }
+}
@@ -0,0 +1,389 @@
+package oocesk;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * A method body lowered to linear register code: one int[] instruction stream
+ * and a constant pool.
+ *
+ * Every instruction is an opcode followed by its operands. Register operands
+ * are frame slots; the registers of the method come first, followed by
+ * temporaries holding the intermediate results of expressions. Jump operands
+ * are instruction indices, and names, literals and caches are indices into the
+ * constant pool.
+ */
+final class LinearCode {
+
+  /* Opcodes, with their operands. */
+
+  /** dst, constant: loads a constant value. */
+  static final int CONST = 0;
+  /** dst, src */
+  static final int MOVE = 1;
+  /** dst, a, b */
+  static final int ADD = 2;
+  /** dst, a, b */
+  static final int SUB = 3;
+  /** dst, a, b */
+  static final int MUL = 4;
+  /** dst, a, b */
+  static final int EQ = 5;
+  /** dst, object, class constant, null if undefined */
+  static final int INSTANCEOF = 6;
+  /** dst, object, field cache constant */
+  static final int GETFIELD = 7;
+  /** object, field cache constant, src */
+  static final int PUTFIELD = 8;
+  /** dst, class constant, layout constant */
+  static final int NEW = 9;
+  /** target */
+  static final int GOTO = 10;
+  /** condition, target */
+  static final int IF = 11;
+  /** a, b, target: jumps if the integers are equal. */
+  static final int IFEQ = 12;
+  /** dst, object, inline cache constant, argc, args... */
+  static final int INVOKE = 13;
+  /** dst, method constant if linked or else inline cache constant, argc, args... */
+  static final int INVOKESUPER = 14;
+  /** src */
+  static final int RETURN = 15;
+  /** src */
+  static final int PRINT = 16;
+  /** class constant, null if undefined, target */
+  static final int PUSHHANDLER = 17;
+  static final int POPHANDLER = 18;
+  /** src */
+  static final int THROW = 19;
+  static final int HALT = 20;
+
+  /**
+   * The instructions.
+   */
+  final int[] code;
+
+  /**
+   * The constant pool.
+   */
+  final Object[] constants;
+
+  /**
+   * The number of registers, including temporaries.
+   */
+  final int registers;
+
+  private LinearCode(int[] code, Object[] constants, int registers) {
+    this.code = code;
+    this.constants = constants;
+    this.registers = registers;
+  }
+
+  /**
+   * Lowers the body of a method.
+   *
+   * @param method
+   *          the method to lower
+   * @return the linear code of the method
+   */
+  static LinearCode lower(MethodDef method) {
+    return new Lowering(method).lower();
+  }
+
+  /**
+   * Lowers one method body.
+   */
+  private static final class Lowering {
+
+    private final MethodDef method;
+
+    private int[] code = new int[64];
+
+    private int length;
+
+    private final List<Object> constants = new ArrayList<Object>();
+
+    private final HashMap<Object, Integer> constantIndex = new HashMap<Object, Integer>();
+
+    private final HashMap<Integer, Integer> intIndex = new HashMap<Integer, Integer>();
+
+    /* The instruction index of each statement. */
+    private final IdentityHashMap<Stmt, Integer> positions = new IdentityHashMap<Stmt, Integer>();
+
+    /* Positions of jump operands, and the labels they name. */
+    private final List<Integer> fixups = new ArrayList<Integer>();
+
+    private final List<String> fixupLabels = new ArrayList<String>();
+
+    private final List<Stmt> fixupTargets = new ArrayList<Stmt>();
+
+    /* The next free temporary, reset for every statement. */
+    private int temp;
+
+    private int registers;
+
+    Lowering(MethodDef method) {
+      this.method = method;
+      this.registers = method.frameSize;
+    }
+
+    LinearCode lower() {
+      for (Stmt s = method.body; s != null; s = s.next) {
+        positions.put(s, length);
+        temp = method.frameSize;
+        lowerStmt(s);
+      }
+      // Falling off the end halts the machine:
+      emit(HALT);
+
+      for (int i = 0; i < fixups.size(); ++i) {
+        String label = fixupLabels.get(i);
+        Stmt labeled = fixupTargets.get(i);
+        Integer target = labeled == null ? null : positions.get(labeled);
+        if (target == null)
+          throw new RuntimeException("no such label in method " + method.name + ": " + label);
+        code[fixups.get(i)] = target;
+      }
+
+      return new LinearCode(Arrays.copyOf(code, length), constants.toArray(), registers);
+    }
+
+    private void emit(int word) {
+      if (length == code.length)
+        code = Arrays.copyOf(code, 2 * length);
+      code[length++] = word;
+    }
+
+    private void emit(int op, int... operands) {
+      emit(op);
+      emitAll(operands);
+    }
+
+    private void emitAll(int[] words) {
+      for (int word : words)
+        emit(word);
+    }
+
+    private void jump(String label, Stmt labeled) {
+      fixups.add(length);
+      fixupLabels.add(label);
+      fixupTargets.add(labeled);
+      emit(-1);
+    }
+
+    private int intConstant(int value) {
+      Integer index = intIndex.get(value);
+      if (index == null) {
+        index = constants.size();
+        constants.add(IntValue.of(value));
+        intIndex.put(value, index);
+      }
+      return index;
+    }
+
+    /* Equal names and values share a constant; caches never do. */
+    private int constant(Object value) {
+      Integer index = constantIndex.get(value);
+      if (index == null) {
+        index = constants.size();
+        constants.add(value);
+        constantIndex.put(value, index);
+      }
+      return index;
+    }
+
+    private int cache(FieldCache cache) {
+      constants.add(cache);
+      return constants.size() - 1;
+    }
+
+    private int newTemp() {
+      int t = temp++;
+      registers = Math.max(registers, temp);
+      return t;
+    }
+
+    private void lowerStmt(Stmt s) {
+      if (s instanceof LabelStmt || s instanceof SkipStmt) {
+        return;
+      }
+
+      if (s instanceof GotoStmt) {
+        GotoStmt stmt = (GotoStmt) s;
+        emit(GOTO);
+        jump(stmt.label, stmt.target);
+      }
+
+      else if (s instanceof IfStmt) {
+        IfStmt stmt = (IfStmt) s;
+        // Branches on a folded condition always or never jump:
+        if (stmt.condition instanceof BooleanExp) {
+          if (!((BooleanExp) stmt.condition).value)
+            return;
+          emit(GOTO);
+        } else if (stmt.condition instanceof AtomicOpExp
+            && ((AtomicOpExp) stmt.condition).op == PrimOp.EQ) {
+          AExp[] args = ((AtomicOpExp) stmt.condition).args;
+          emit(IFEQ, operand(args[0]), operand(args[1]));
+        } else {
+          emit(IF, operand(stmt.condition));
+        }
+        jump(stmt.label, stmt.target);
+      }
+
+      else if (s instanceof AssignAExpStmt) {
+        AssignAExpStmt stmt = (AssignAExpStmt) s;
+        lowerInto(stmt.rhs, stmt.lhsSlot);
+      }
+
+      else if (s instanceof NewStmt) {
+        NewStmt stmt = (NewStmt) s;
+        ClassDef classs = stmt.classs();
+        emit(NEW, stmt.lhsSlot, constant(classs), constant(classs.fieldLayout()));
+      }
+
+      else if (s instanceof InvokeStmt) {
+        InvokeStmt stmt = (InvokeStmt) s;
+        int object = operand(stmt.object);
+        int[] args = operands(stmt.args);
+        emit(INVOKE, stmt.lhsSlot, object, constant(stmt.cache), args.length);
+        emitAll(args);
+      }
+
+      else if (s instanceof InvokeSuperStmt) {
+        InvokeSuperStmt stmt = (InvokeSuperStmt) s;
+        int[] args = operands(stmt.args);
+        Object site = stmt.target != null ? stmt.target : stmt.cache;
+        emit(INVOKESUPER, stmt.lhsSlot, constant(site), args.length);
+        emitAll(args);
+      }
+
+      else if (s instanceof ReturnStmt) {
+        emit(RETURN, operand(((ReturnStmt) s).result));
+      }
+
+      else if (s instanceof PrintStmt) {
+        for (AExp arg : ((PrintStmt) s).args) {
+          temp = method.frameSize;
+          emit(PRINT, operand(arg));
+        }
+      }
+
+      else if (s instanceof FieldAssignStmt) {
+        FieldAssignStmt stmt = (FieldAssignStmt) s;
+        int object = operand(stmt.object);
+        int rhs = operand(stmt.rhs);
+        emit(PUTFIELD, object, cache(new FieldCache(stmt.field)), rhs);
+      }
+
+      else if (s instanceof PushHandlerStmt) {
+        PushHandlerStmt stmt = (PushHandlerStmt) s;
+        emit(PUSHHANDLER, constant(stmt.classs));
+        jump(stmt.label, stmt.target);
+      }
+
+      else if (s instanceof PopHandlerStmt) {
+        emit(POPHANDLER);
+      }
+
+      else if (s instanceof ThrowStmt) {
+        emit(THROW, operand(((ThrowStmt) s).exception));
+      }
+
+      else if (s instanceof MoveExceptionStmt) {
+        emit(MOVE, ((MoveExceptionStmt) s).registerSlot, FrameLayout.EX_SLOT);
+      }
+
+      else {
+        throw new RuntimeException("cannot lower statement: " + s.getClass().getName());
+      }
+    }
+
+    private int[] operands(AExp[] exps) {
+      int[] regs = new int[exps.length];
+      for (int i = 0; i < exps.length; ++i)
+        regs[i] = operand(exps[i]);
+      return regs;
+    }
+
+    /**
+     * Returns a register holding the value of an expression, lowering the
+     * expression into a temporary unless it is a register already.
+     */
+    private int operand(AExp exp) {
+      if (exp instanceof RegisterExp)
+        return ((RegisterExp) exp).slot;
+      if (exp instanceof ThisExp)
+        return FrameLayout.THIS_SLOT;
+      int t = newTemp();
+      lowerInto(exp, t);
+      return t;
+    }
+
+    /**
+     * Lowers an expression whose value goes to the given register.
+     */
+    private void lowerInto(AExp exp, int dst) {
+      if (exp instanceof RegisterExp || exp instanceof ThisExp) {
+        emit(MOVE, dst, operand(exp));
+      }
+
+      else if (exp instanceof IntExp) {
+        emit(CONST, dst, intConstant(((IntExp) exp).value));
+      }
+
+      else if (exp instanceof BooleanExp || exp instanceof NullExp || exp instanceof VoidExp) {
+        emit(CONST, dst, constant(exp.eval(null, null)));
+      }
+
+      else if (exp instanceof AtomicOpExp) {
+        lowerOp((AtomicOpExp) exp, dst);
+      }
+
+      else if (exp instanceof InstanceOfExp) {
+        InstanceOfExp e = (InstanceOfExp) exp;
+        emit(INSTANCEOF, dst, operand(e.object), constant(e.classs));
+      }
+
+      else if (exp instanceof FieldExp) {
+        FieldExp e = (FieldExp) exp;
+        emit(GETFIELD, dst, operand(e.object), cache(new FieldCache(e.field)));
+      }
+
+      else {
+        throw new RuntimeException("cannot lower expression: " + exp.getClass().getName());
+      }
+    }
+
+    private void lowerOp(AtomicOpExp exp, int dst) {
+      AExp[] args = exp.args;
+      switch (exp.op) {
+      case ADD:
+      case MUL:
+        int op = exp.op == PrimOp.ADD ? ADD : MUL;
+        if (args.length == 2) {
+          emit(op, dst, operand(args[0]), operand(args[1]));
+          return;
+        }
+        // Fold any other number of arguments into a temporary, from the identity:
+        int acc = newTemp();
+        emit(CONST, acc, intConstant(exp.op == PrimOp.ADD ? 0 : 1));
+        for (AExp arg : args)
+          emit(op, acc, acc, operand(arg));
+        emit(MOVE, dst, acc);
+        return;
+      case SUB:
+        emit(SUB, dst, operand(args[0]), operand(args[1]));
+        return;
+      case EQ:
+        emit(EQ, dst, operand(args[0]), operand(args[1]));
+        return;
+      default:
+        throw new RuntimeException("unhandled atomic op: " + exp.op);
+      }
+    }
+  }
+}
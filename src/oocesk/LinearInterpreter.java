@@ -0,0 +1,281 @@
+package oocesk;
+
+import static oocesk.LinearCode.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs linear register code with a single switch-dispatch loop.
+ *
+ * Frames are register arrays held on an explicit stack of activations, each
+ * with its own stack of handlers; only objects live in the store. This
+ * matches the machine, where returning through a method discards the handlers
+ * it pushed.
+ */
+final class LinearInterpreter {
+
+  /**
+   * A method activation: its code, registers, handlers and return point.
+   */
+  private static final class Frame {
+    final LinearCode code;
+
+    final Value[] regs;
+
+    final Frame caller;
+
+    /* The register of the caller receiving the result. */
+    final int resultReg;
+
+    /* The instruction at which to resume this frame after a call. */
+    int pc;
+
+    Handler handlers;
+
+    Frame(LinearCode code, Frame caller, int resultReg) {
+      this.code = code;
+      this.regs = new Value[code.registers];
+      this.caller = caller;
+      this.resultReg = resultReg;
+    }
+  }
+
+  /**
+   * A pushed exception handler.
+   */
+  private static final class Handler {
+    final ClassDef classs;
+
+    final int target;
+
+    final Handler next;
+
+    Handler(ClassDef classs, int target, Handler next) {
+      this.classs = classs;
+      this.target = target;
+      this.next = next;
+    }
+  }
+
+  private Store store;
+
+  private final Collector collector;
+
+  private LinearInterpreter(Store store, Collector collector) {
+    this.store = store;
+    this.collector = collector;
+  }
+
+  /**
+   * Executes the main method in the supplied class.
+   *
+   * @param mainClass
+   *          the class with a main method
+   * @param store0
+   *          the store to hold objects
+   * @param collector
+   *          the garbage collector, or null to never collect
+   */
+  static void execute(ClassDef mainClass, Store store0, Collector collector) {
+    MethodDef main = mainClass.lookupMethod("main");
+    ObjectValue obj = new ObjectValue(mainClass, mainClass.fieldLayout(), new ObjectPointer());
+    LinearInterpreter interpreter = new LinearInterpreter(store0.allocObject(obj), collector);
+    Frame frame = new Frame(main.linear(), null, -1);
+    frame.regs[FrameLayout.THIS_SLOT] = obj;
+    interpreter.run(frame);
+  }
+
+  private void run(Frame frame) {
+    int[] code = frame.code.code;
+    Object[] constants = frame.code.constants;
+    Value[] regs = frame.regs;
+    int pc = 0;
+
+    for (;;) {
+      switch (code[pc]) {
+
+      case CONST:
+        regs[code[pc + 1]] = (Value) constants[code[pc + 2]];
+        pc += 3;
+        break;
+
+      case MOVE:
+        regs[code[pc + 1]] = regs[code[pc + 2]];
+        pc += 3;
+        break;
+
+      case ADD:
+        regs[code[pc + 1]] = IntValue.of(regs[code[pc + 2]].toInt() + regs[code[pc + 3]].toInt());
+        pc += 4;
+        break;
+
+      case SUB:
+        regs[code[pc + 1]] = IntValue.of(regs[code[pc + 2]].toInt() - regs[code[pc + 3]].toInt());
+        pc += 4;
+        break;
+
+      case MUL:
+        regs[code[pc + 1]] = IntValue.of(regs[code[pc + 2]].toInt() * regs[code[pc + 3]].toInt());
+        pc += 4;
+        break;
+
+      case EQ:
+        regs[code[pc + 1]] = Value.from(regs[code[pc + 2]].toInt() == regs[code[pc + 3]].toInt());
+        pc += 4;
+        break;
+
+      case INSTANCEOF: {
+        ObjectValue obj = (ObjectValue) regs[code[pc + 2]];
+        regs[code[pc + 1]] = Value.from(obj.isInstanceOf((ClassDef) constants[code[pc + 3]]));
+        pc += 4;
+        break;
+      }
+
+      case GETFIELD: {
+        ObjectValue obj = (ObjectValue) regs[code[pc + 2]];
+        int slot = ((FieldCache) constants[code[pc + 3]]).slot(obj.layout);
+        regs[code[pc + 1]] = store.lookup(obj.pointer, slot);
+        pc += 4;
+        break;
+      }
+
+      case PUTFIELD: {
+        ObjectValue obj = (ObjectValue) regs[code[pc + 1]];
+        int slot = ((FieldCache) constants[code[pc + 2]]).slot(obj.layout);
+        store = store.bind(obj.pointer, slot, regs[code[pc + 3]]);
+        pc += 4;
+        break;
+      }
+
+      case NEW: {
+        if (collector != null && collector.isDue(store))
+          store = collector.collect(store, roots(frame));
+        ObjectValue obj = new ObjectValue((ClassDef) constants[code[pc + 2]],
+            (FieldLayout) constants[code[pc + 3]], new ObjectPointer());
+        store = store.allocObject(obj);
+        regs[code[pc + 1]] = obj;
+        pc += 4;
+        break;
+      }
+
+      case GOTO:
+        pc = code[pc + 1];
+        break;
+
+      case IF:
+        pc = regs[code[pc + 1]].toBoolean() ? code[pc + 2] : pc + 3;
+        break;
+
+      case IFEQ:
+        pc = regs[code[pc + 1]].toInt() == regs[code[pc + 2]].toInt() ? code[pc + 3] : pc + 4;
+        break;
+
+      case INVOKE:
+      case INVOKESUPER: {
+        boolean isSuper = code[pc] == INVOKESUPER;
+        int args = isSuper ? pc + 4 : pc + 5;
+        ObjectValue thiss = (ObjectValue) regs[isSuper ? FrameLayout.THIS_SLOT : code[pc + 2]];
+        Object site = constants[code[args - 2]];
+        MethodDef method = site instanceof MethodDef ? (MethodDef) site
+            : ((InlineCache) site).lookup(thiss);
+        int argc = code[args - 1];
+
+        // Build the callee's frame:
+        Frame callee = new Frame(method.linear(), frame, code[pc + 1]);
+        callee.regs[FrameLayout.THIS_SLOT] = thiss;
+        for (int i = 0; i < method.formals.length; ++i)
+          callee.regs[method.formalSlots[i]] = regs[code[args + i]];
+
+        // Save the return point and enter the callee:
+        frame.pc = args + argc;
+        frame = callee;
+        code = frame.code.code;
+        constants = frame.code.constants;
+        regs = frame.regs;
+        pc = 0;
+        break;
+      }
+
+      case RETURN: {
+        Value result = regs[code[pc + 1]];
+        Frame caller = frame.caller;
+        if (caller == null)
+          throw new RuntimeException("terminated: " + result);
+        caller.regs[frame.resultReg] = result;
+        frame = caller;
+        code = frame.code.code;
+        constants = frame.code.constants;
+        regs = frame.regs;
+        pc = frame.pc;
+        break;
+      }
+
+      case PRINT:
+        System.out.println(regs[code[pc + 1]].toPrint());
+        pc += 2;
+        break;
+
+      case PUSHHANDLER:
+        frame.handlers = new Handler((ClassDef) constants[code[pc + 1]], code[pc + 2],
+            frame.handlers);
+        pc += 3;
+        break;
+
+      case POPHANDLER:
+        if (frame.handlers == null)
+          throw new RuntimeException("no handler to pop!");
+        frame.handlers = frame.handlers.next;
+        pc += 1;
+        break;
+
+      case THROW: {
+        ObjectValue exception = (ObjectValue) regs[code[pc + 1]];
+
+        // Unwind to the innermost matching handler:
+        Handler handler = null;
+        for (;;) {
+          for (Handler h = frame.handlers; h != null; h = h.next) {
+            if (exception.isInstanceOf(h.classs)) {
+              handler = h;
+              break;
+            }
+          }
+          if (handler != null)
+            break;
+          frame = frame.caller;
+          if (frame == null)
+            throw new RuntimeException("uncaught exception: " + exception);
+        }
+        frame.handlers = handler.next;
+        frame.regs[FrameLayout.EX_SLOT] = exception;
+        code = frame.code.code;
+        constants = frame.code.constants;
+        regs = frame.regs;
+        pc = handler.target;
+        break;
+      }
+
+      case HALT:
+        return;
+
+      default:
+        throw new RuntimeException("bad opcode " + code[pc] + " at " + pc);
+      }
+    }
+  }
+
+  /**
+   * The object pointers held in the registers of every active frame.
+   */
+  private static List<Pointer> roots(Frame frame) {
+    List<Pointer> roots = new ArrayList<Pointer>();
+    for (Frame f = frame; f != null; f = f.caller) {
+      for (Value v : f.regs) {
+        if (v instanceof ObjectValue)
+          roots.add(((ObjectValue) v).pointer);
+      }
+    }
+    return roots;
+  }
+}
@@ -0,0 +1,190 @@
+package oocesk;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Links the classes of a program once every file has been parsed.
+ *
+ * Every method name gets a selector, an index into the flattened vtable built
+ * for each class: the parent's table, with the methods the class declares
+ * written over it. Call sites are then bound to their selector, and calls to
+ * super are resolved to a method once and for all, since the parent of the
+ * enclosing class never changes. Each class also gets its display, for
+ * constant-time subclass checks.
+ */
+final class Linker {
+
+  /**
+   * The name of the implicit root class, which need not be defined.
+   */
+  static final String ROOT_CLASS = "Object";
+
+  final static class LinkException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    LinkException(String msg) {
+      super(msg);
+    }
+  }
+
+  private final Program program;
+
+  private final Map<String, Integer> selectors = new HashMap<String, Integer>();
+
+  private final IdentityHashMap<ClassDef, Boolean> visiting =
+      new IdentityHashMap<ClassDef, Boolean>();
+
+  private final List<String> errors = new ArrayList<String>();
+
+  private Linker(Program program) {
+    this.program = program;
+  }
+
+  /**
+   * Builds the vtable of every class and binds every call site to its
+   * selector.
+   *
+   * @param program
+   *          the program to link
+   * @return the selector of every method name
+   * @throws LinkException
+   *           listing every duplicate class, missing parent, cycle of parents,
+   *           label defined twice in a method or missing from it, allocation
+   *           of an undefined class and call to a method no class defines
+   */
+  static Map<String, Integer> link(Program program) throws LinkException {
+    Linker linker = new Linker(program);
+    List<ClassDef> classes = program.classes();
+    linker.assignSelectors(classes);
+    for (ClassDef c : classes) {
+      if (program.classNamed(c.name) != c)
+        linker.errors.add("class " + c.name + ": defined more than once");
+      linker.vtable(c);
+    }
+    if (linker.errors.isEmpty()) {
+      for (ClassDef c : classes) {
+        c.display();
+        linker.bindStatements(c);
+      }
+    }
+    if (!linker.errors.isEmpty()) {
+      StringBuilder msg = new StringBuilder();
+      for (String error : linker.errors) {
+        if (msg.length() > 0)
+          msg.append("\n");
+        msg.append(error);
+      }
+      throw new LinkException(msg.toString());
+    }
+    return linker.selectors;
+  }
+
+  private void assignSelectors(Collection<ClassDef> classes) {
+    for (ClassDef c : classes) {
+      for (MethodDef m : c.methods()) {
+        if (!selectors.containsKey(m.name))
+          selectors.put(m.name, selectors.size());
+      }
+    }
+  }
+
+  /**
+   * Returns the vtable of a class, building its parents' first.
+   */
+  private MethodDef[] vtable(ClassDef c) {
+    if (c.vtable != null)
+      return c.vtable;
+    if (visiting.containsKey(c)) {
+      errors.add("class " + c.name + ": cyclic inheritance");
+      return null;
+    }
+
+    MethodDef[] inherited = null;
+    ClassDef parent = c.parentClass();
+    if (parent != null) {
+      visiting.put(c, true);
+      inherited = vtable(parent);
+      visiting.remove(c);
+      if (inherited == null)
+        return null;
+    } else if (!ROOT_CLASS.equals(c.parentClassName)) {
+      errors.add("class " + c.name + ": no such parent class: " + c.parentClassName);
+      return null;
+    }
+
+    MethodDef[] vtable = inherited == null ? new MethodDef[selectors.size()]
+        : Arrays.copyOf(inherited, selectors.size());
+    for (MethodDef m : c.methods())
+      vtable[selectors.get(m.name)] = m;
+    c.vtable = vtable;
+    return vtable;
+  }
+
+  private void bindStatements(ClassDef c) {
+    for (MethodDef m : c.methods()) {
+      Set<String> labels = new HashSet<String>();
+      for (Stmt s = m.body; s != null; s = s.next) {
+        String where = "method " + c.name + "." + m.name + ": ";
+
+        if (s instanceof LabelStmt) {
+          String label = ((LabelStmt) s).label;
+          if (!labels.add(label))
+            errors.add(where + "duplicate label: " + label);
+          continue;
+        }
+
+        String label = jumpLabel(s);
+        if (label != null && m.labelNamed(label) == null)
+          errors.add(where + "no such label: " + label);
+
+        if (s instanceof NewStmt) {
+          String className = ((NewStmt) s).className;
+          if (program.classNamed(className) == null)
+            errors.add(where + "no such class: " + className);
+          continue;
+        }
+
+        if (!(s instanceof AbstractInvokeStmt))
+          continue;
+        AbstractInvokeStmt call = (AbstractInvokeStmt) s;
+
+        Integer selector = selectors.get(call.methodName);
+        if (selector == null) {
+          errors.add(where + "no such method: " + call.methodName);
+          continue;
+        }
+        call.cache.link(selector);
+
+        if (call instanceof InvokeSuperStmt) {
+          ClassDef parent = c.parentClass();
+          MethodDef target = parent == null ? null : parent.vtable[selector];
+          if (target == null)
+            errors.add(where + "no such method in parent class: " + call.methodName);
+          else
+            ((InvokeSuperStmt) call).target = target;
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the label a statement may transfer control to, if any.
+   */
+  private static String jumpLabel(Stmt s) {
+    if (s instanceof GotoStmt)
+      return ((GotoStmt) s).label;
+    if (s instanceof IfStmt)
+      return ((IfStmt) s).label;
+    if (s instanceof PushHandlerStmt)
+      return ((PushHandlerStmt) s).label;
+    return null;
+  }
+}
@@ -6,11 +6,19 @@ package oocesk;
  @since   2012-08-28
  */
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Comparator;
-import java.util.Hashtable;
-
-import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.ImmutableSortedMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /* Abstract syntax tree. */
 
@@ -32,9 +40,25 @@ class ClassDef {
    */
   public final String parentClassName;
 
-  private final Hashtable<String, MethodDef> methods = new Hashtable<String, MethodDef>();
+  /* Filled in by the parser and only read afterwards, in declaration order. */
+  private final Map<String, MethodDef> methods = new LinkedHashMap<String, MethodDef>();
+
+  private final Map<String, FieldDef> fields = new LinkedHashMap<String, FieldDef>();
+
+  /* The field layout, computed on first use so that the parent may be defined later. */
+  private volatile FieldLayout fieldLayout;
+
+  /**
+   * The method for every selector, inherited ones included, or null until the
+   * program is linked.
+   */
+  MethodDef[] vtable;
 
-  private final Hashtable<String, FieldDef> fields = new Hashtable<String, FieldDef>();
+  /* The ancestors of this class from the root down, ending with the class itself. */
+  private volatile ClassDef[] display;
+
+  /* The parent class, resolved when the program is loaded. */
+  private ClassDef parent;
 
   /**
    * Creates a new class definition.
@@ -47,31 +71,63 @@ class ClassDef {
   public ClassDef(String name, String parentClassName) {
     this.name = name;
     this.parentClassName = parentClassName;
-    classMap.put(name, this);
   }
 
   /**
-   * Checks if this class is a sub-class of another.
+   * Resolves the parent of this class, and the classes and labels named in
+   * its methods, against the program it was loaded into.
+   * 
+   * @param program
+   *          the program this class belongs to
+   */
+  void resolve(Program program) {
+    parent = program.classNamed(parentClassName);
+    for (MethodDef m : methods.values()) {
+      for (Stmt s = m.body; s != null; s = s.next)
+        s.resolve(program, m);
+    }
+  }
+
+  /**
+   * Checks if this class is a sub-class of another, in constant time: a class
+   * at depth d in the hierarchy is an ancestor exactly when it is at index d
+   * of the display.
    * 
    * @return true iff this class is a sub-class of the argument.
    */
-  public boolean isInstanceOf(String otherClassName) {
-    if (this.name.equals(otherClassName))
-      return true;
-
-    if (this.parentClass() == null)
-      return false;
+  public boolean isSubclassOf(ClassDef other) {
+    ClassDef[] mine = display();
+    int depth = other.display().length - 1;
+    return depth < mine.length && mine[depth] == other;
+  }
 
-    return this.parentClass().isInstanceOf(otherClassName);
+  /**
+   * Returns the display of this class: its ancestors from the root down,
+   * ending with the class itself. It is computed on first use, so that the
+   * parent may be defined later.
+   * 
+   * @return the display of this class
+   */
+  ClassDef[] display() {
+    ClassDef[] d = display;
+    if (d == null) {
+      ClassDef par = parentClass();
+      ClassDef[] base = par == null ? new ClassDef[0] : par.display();
+      d = Arrays.copyOf(base, base.length + 1);
+      d[base.length] = this;
+      display = d;
+    }
+    return d;
   }
 
   /**
    * Looks up the parent class definition of this class.
    * 
-   * @return the parent class definition of this class
+   * @return the parent class definition of this class, or null if it is not
+   *         defined or the class has not been loaded
    */
   public ClassDef parentClass() {
-    return classMap.get(parentClassName);
+    return parent;
   }
 
   /**
@@ -116,6 +172,23 @@ class ClassDef {
     }
   }
 
+  /**
+   * Returns the layout of objects of this class: the inherited fields first, in
+   * the same slots as in the parent, followed by the fields declared here.
+   * 
+   * @return the field layout of this class
+   */
+  public FieldLayout fieldLayout() {
+    FieldLayout layout = fieldLayout;
+    if (layout == null) {
+      ClassDef par = parentClass();
+      FieldLayout base = par == null ? FieldLayout.EMPTY : par.fieldLayout();
+      layout = new FieldLayout(base, fields.keySet());
+      fieldLayout = layout;
+    }
+    return layout;
+  }
+
   /**
    * Adds a method to this class.
    * 
@@ -127,33 +200,43 @@ class ClassDef {
    *          the initial statement of the method
    */
   public void addMethod(String methodName, String[] formals, Stmt body) {
-    MethodDef m = new MethodDef(methodName, formals, body);
-    methods.put(methodName, m);
+    addMethod(new MethodDef(methodName, formals, body));
   }
 
   /**
-   * Adds a field to this class.
+   * Adds an already constructed method to this class.
    * 
-   * @param fieldName
-   *          the name of the field to add
+   * @param m
+   *          the method to add
    */
-  public void addField(String fieldName) {
-    FieldDef f = new FieldDef(fieldName);
-    fields.put(fieldName, f);
+  public void addMethod(MethodDef m) {
+    methods.put(m.name, m);
+  }
+
+  /**
+   * Returns the methods declared in this class, not including inherited ones.
+   */
+  public Collection<MethodDef> methods() {
+    return methods.values();
   }
 
-  /* The global class database. */
-  private static Hashtable<String, ClassDef> classMap = new Hashtable<String, ClassDef>();
+  /**
+   * Returns the names of the fields declared in this class, not including
+   * inherited ones.
+   */
+  public Collection<String> fieldNames() {
+    return fields.keySet();
+  }
 
   /**
-   * Look up a class based on its name.
+   * Adds a field to this class.
    * 
-   * @param className
-   *          the name of the class to look up
-   * @return the class with the given name
+   * @param fieldName
+   *          the name of the field to add
    */
-  public static ClassDef forName(String className) {
-    return classMap.get(className);
+  public void addField(String fieldName) {
+    FieldDef f = new FieldDef(fieldName);
+    fields.put(fieldName, f);
   }
 }
 
@@ -178,12 +261,133 @@ class MethodDef {
   public final Stmt body;
 
   /**
-   * Constructs a new method definition.
+   * The frame slot of each formal parameter.
+   */
+  public final int[] formalSlots;
+
+  /**
+   * The number of slots in a frame for this method.
+   */
+  public final int frameSize;
+
+  /* The statement at each label in the body; the first wins if one repeats. */
+  private final Map<String, Stmt> labels = new HashMap<String, Stmt>();
+
+  /**
+   * Constructs a new method definition, resolving every register in the body
+   * to a slot in the method's frame and indexing the labels of the body.
    */
   public MethodDef(String name, String[] formals, Stmt body) {
     this.name = name;
     this.formals = formals;
     this.body = body;
+
+    FrameLayout layout = new FrameLayout();
+    this.formalSlots = new int[formals.length];
+    for (int i = 0; i < formals.length; ++i)
+      formalSlots[i] = layout.slot(formals[i]);
+    for (Stmt stmt = body; stmt != null; stmt = stmt.next) {
+      stmt.link(layout);
+      if (stmt instanceof LabelStmt && !labels.containsKey(((LabelStmt) stmt).label))
+        labels.put(((LabelStmt) stmt).label, stmt);
+    }
+    this.frameSize = layout.size();
+  }
+
+  /**
+   * Maps a label of this method to the statement it labels.
+   * 
+   * @param label
+   *          the label to look up
+   * @return the labeled statement, or null if the body has no such label
+   */
+  public Stmt labelNamed(String label) {
+    return labels.get(label);
+  }
+
+  /* The body compiled to closures, built on first use. */
+  private volatile Stmt code;
+
+  private volatile boolean compiled;
+
+  /**
+   * Returns the body of this method compiled to closures.
+   * 
+   * Compilation is deferred to the first call, when every class the body
+   * mentions has been loaded.
+   * 
+   * @return the first compiled statement, or null if the body is empty
+   */
+  public Stmt code() {
+    if (!compiled) {
+      code = ClosureCompiler.compile(this);
+      compiled = true;
+    }
+    return code;
+  }
+
+  /* The body lowered to linear code, built on first use. */
+  private volatile LinearCode linear;
+
+  /**
+   * Returns the body of this method lowered to linear register code.
+   */
+  public LinearCode linear() {
+    LinearCode l = linear;
+    if (l == null) {
+      l = LinearCode.lower(this);
+      linear = l;
+    }
+    return l;
+  }
+}
+
+/**
+ * A frame layout assigns each register of a method a fixed slot in its frame.
+ * 
+ * The registers $this and $ex always occupy the first two slots.
+ */
+class FrameLayout {
+
+  /**
+   * The slot holding the current object.
+   */
+  public static final int THIS_SLOT = 0;
+
+  /**
+   * The slot holding the most recently caught exception.
+   */
+  public static final int EX_SLOT = 1;
+
+  private final HashMap<String, Integer> slots = new HashMap<String, Integer>();
+
+  public FrameLayout() {
+    slot("$this");
+    slot("$ex");
+  }
+
+  /**
+   * Returns the slot of a register, assigning the next free slot if the
+   * register has not been seen before.
+   * 
+   * @param register
+   *          the name of the register
+   * @return the slot for the register
+   */
+  public int slot(String register) {
+    Integer slot = slots.get(register);
+    if (slot == null) {
+      slot = slots.size();
+      slots.put(register, slot);
+    }
+    return slot;
+  }
+
+  /**
+   * Returns the number of slots assigned so far.
+   */
+  public int size() {
+    return slots.size();
   }
 }
 
@@ -205,6 +409,281 @@ class FieldDef {
   }
 }
 
+/**
+ * A field layout assigns each field of a class a fixed slot in its objects.
+ */
+class FieldLayout {
+
+  /**
+   * The layout of a class without fields.
+   */
+  public static final FieldLayout EMPTY = new FieldLayout(null, new ArrayList<String>());
+
+  private final HashMap<String, Integer> slots;
+
+  /**
+   * Extends a layout with more fields; fields already in the base layout keep
+   * their slots.
+   * 
+   * @param base
+   *          the layout to extend, or null
+   * @param fieldNames
+   *          the names of the new fields
+   */
+  public FieldLayout(FieldLayout base, Collection<String> fieldNames) {
+    this.slots = base == null ? new HashMap<String, Integer>()
+        : new HashMap<String, Integer>(base.slots);
+    for (String name : fieldNames) {
+      if (!slots.containsKey(name))
+        slots.put(name, slots.size());
+    }
+  }
+
+  /**
+   * Returns the slot of a field.
+   * 
+   * @param fieldName
+   *          the name of the field
+   * @return the slot of the field
+   */
+  public int slot(String fieldName) {
+    Integer slot = slots.get(fieldName);
+    if (slot == null)
+      throw new RuntimeException("no such field: " + fieldName);
+    return slot;
+  }
+
+  /**
+   * Returns the number of slots in an object with this layout.
+   */
+  public int size() {
+    return slots.size();
+  }
+
+  /**
+   * Creates the record for a new object with this layout.
+   */
+  public Value[] newRecord() {
+    return new Value[slots.size()];
+  }
+}
+
+/**
+ * Caches the slot of a named field for the layout last seen at one field access
+ * site.
+ */
+final class FieldCache {
+
+  /**
+   * The name of the field.
+   */
+  public final String field;
+
+  /* The last resolution, replaced as a whole so that readers never see a torn pair. */
+  private volatile Entry last;
+
+  private static final class Entry {
+    final FieldLayout layout;
+    final int slot;
+
+    Entry(FieldLayout layout, int slot) {
+      this.layout = layout;
+      this.slot = slot;
+    }
+  }
+
+  public FieldCache(String field) {
+    this.field = field;
+  }
+
+  /**
+   * Returns the slot of the field in objects with the given layout.
+   */
+  public int slot(FieldLayout layout) {
+    Entry e = last;
+    if (e == null || e.layout != layout) {
+      e = new Entry(layout, layout.slot(field));
+      last = e;
+    }
+    return e.slot;
+  }
+}
+
+/**
+ * An inline cache of method lookups at one call site, keyed by the class of
+ * the receiver.
+ * 
+ * A site starts out empty, becomes monomorphic with its first receiver class
+ * and polymorphic with its second. Once it has seen more classes than it can
+ * hold, it is megamorphic: further classes are looked up in full every time.
+ */
+final class InlineCache {
+
+  /**
+   * The most receiver classes a site caches.
+   */
+  public static final int POLYMORPHIC_LIMIT = 4;
+
+  /**
+   * The name of the method called.
+   */
+  public final String methodName;
+
+  /* Whether the method is looked up in the parent of the receiver's class. */
+  private final boolean isSuper;
+
+  /* The index of the method in every vtable, or -1 until the site is linked. */
+  private int selector = -1;
+
+  /* Replaced as a whole so that readers never see a torn entry. */
+  private volatile Entry[] entries = new Entry[0];
+
+  private volatile boolean megamorphic;
+
+  private long hits;
+
+  private long misses;
+
+  private static final class Entry {
+    final ClassDef classs;
+    final MethodDef method;
+
+    Entry(ClassDef classs, MethodDef method) {
+      this.classs = classs;
+      this.method = method;
+    }
+  }
+
+  /**
+   * Creates an empty cache.
+   * 
+   * @param methodName
+   *          the name of the method called at the site
+   * @param isSuper
+   *          whether the site is a call to a method of the parent class
+   */
+  public InlineCache(String methodName, boolean isSuper) {
+    this.methodName = methodName;
+    this.isSuper = isSuper;
+  }
+
+  /**
+   * Binds this site to the selector of its method, so that misses read the
+   * receiver class's vtable instead of searching the class hierarchy.
+   */
+  void link(int selector) {
+    this.selector = selector;
+  }
+
+  /**
+   * Returns the method to run for a receiver.
+   */
+  public MethodDef lookup(ObjectValue receiver) {
+    ClassDef receiverClass = receiver.classs;
+    Entry[] es = entries;
+    for (Entry e : es) {
+      if (e.classs == receiverClass) {
+        hits++;
+        return e.method;
+      }
+    }
+
+    misses++;
+    ClassDef classs = isSuper ? receiverClass.parentClass() : receiverClass;
+    MethodDef method = selector >= 0 && classs.vtable != null ? classs.vtable[selector]
+        : classs.lookupMethod(methodName);
+    if (method == null)
+      throw new RuntimeException("no such method: " + methodName);
+
+    if (es.length < POLYMORPHIC_LIMIT) {
+      Entry[] grown = new Entry[es.length + 1];
+      System.arraycopy(es, 0, grown, 0, es.length);
+      grown[es.length] = new Entry(receiverClass, method);
+      entries = grown;
+    } else {
+      megamorphic = true;
+    }
+    return method;
+  }
+
+  /**
+   * Returns the number of lookups answered from the cache.
+   */
+  public long hits() {
+    return hits;
+  }
+
+  /**
+   * Returns the number of lookups that had to search the class hierarchy.
+   */
+  public long misses() {
+    return misses;
+  }
+
+  /**
+   * Returns the number of receiver classes cached at this site.
+   */
+  public int receiverClasses() {
+    return entries.length;
+  }
+
+  /**
+   * Checks whether this site has seen more receiver classes than it caches.
+   */
+  public boolean isMegamorphic() {
+    return megamorphic;
+  }
+
+  /**
+   * Totals the dispatch counters of every call site in a program.
+   */
+  static final class Stats {
+
+    public long hits;
+
+    public long misses;
+
+    public int monomorphic;
+
+    public int polymorphic;
+
+    public int megamorphic;
+
+    /**
+     * Gathers the counters of every call site in the given classes.
+     */
+    public static Stats of(Collection<ClassDef> classes) {
+      Stats stats = new Stats();
+      for (ClassDef c : classes) {
+        for (MethodDef m : c.methods()) {
+          for (Stmt s = m.body; s != null; s = s.next) {
+            if (s instanceof AbstractInvokeStmt)
+              stats.add(((AbstractInvokeStmt) s).cache);
+          }
+        }
+      }
+      return stats;
+    }
+
+    private void add(InlineCache cache) {
+      hits += cache.hits();
+      misses += cache.misses();
+      if (cache.isMegamorphic())
+        megamorphic++;
+      else if (cache.receiverClasses() > 1)
+        polymorphic++;
+      else if (cache.receiverClasses() == 1)
+        monomorphic++;
+    }
+
+    @Override
+    public String toString() {
+      return hits + " hits, " + misses + " misses, " + monomorphic + " monomorphic, "
+          + polymorphic + " polymorphic, " + megamorphic + " megamorphic sites";
+    }
+  }
+}
+
 /*- Statements -*/
 
 /**
@@ -239,32 +718,39 @@ abstract class Stmt {
    *          the current continuation
    * @return the next state
    */
-  public abstract State step(FramePointer fp, ImmutableMap<Addr, Value> store, Kont kont);
-
-  /* Label-to-statement lookup methods. */
+  public State step(FramePointer fp, Store store, Kont kont) {
+    Machine m = new Machine(this, fp, store, kont);
+    exec(m);
+    return m.snapshot();
+  }
 
-  private static Hashtable<String, Stmt> stmtMap = new Hashtable<String, Stmt>();
+  /**
+   * Executes this statement, which must be the machine's current statement,
+   * updating the machine's registers in place.
+   * 
+   * @param m
+   *          the machine to update
+   */
+  public abstract void exec(Machine m);
 
   /**
-   * Registers this statement as at the supplied label.
+   * Resolves the registers this statement mentions to frame slots.
    * 
-   * @param labelName
-   *          the label to which this statement should be attached
+   * @param layout
+   *          the frame layout of the enclosing method
    */
-  protected void register(String labelName) {
-    stmtMap.put(labelName, this);
-  }
+  void link(FrameLayout layout) {}
 
   /**
-   * Maps a label back to a statement.
+   * Resolves the classes and labels this statement names; labels are scoped
+   * to the enclosing method.
    * 
-   * @param labelName
-   *          the label to look up
-   * @return the statement for the given label
+   * @param program
+   *          the program the statement was loaded into
+   * @param method
+   *          the method whose body holds the statement
    */
-  public static Stmt forLabel(String labelName) {
-    return stmtMap.get(labelName);
-  }
+  void resolve(Program program, MethodDef method) {}
 
 }
 
@@ -284,16 +770,15 @@ final class LabelStmt extends Stmt {
   public LabelStmt(String label, Stmt next) {
     super(next);
     this.label = label;
-    this.register(label);
   }
 
   /**
    * Skips to the next instruction.
    */
-  public State step(FramePointer fp, ImmutableMap<Addr, Value> store, Kont kont) {
+  public void exec(Machine m) {
     // this.next is the syntactic successor
     // of the current instruction:
-    return new State(this.next, fp, store, kont);
+    m.stmt = this.next;
   }
 
 }
@@ -313,10 +798,10 @@ final class SkipStmt extends Stmt {
   /**
    * Skips to the next statement.
    */
-  public State step(FramePointer fp, ImmutableMap<Addr, Value> store, Kont kont) {
+  public void exec(Machine m) {
     // this.next is the syntactic successor
     // of the current statement:
-    return new State(this.next, fp, store, kont);
+    m.stmt = this.next;
   }
 
 }
@@ -331,6 +816,11 @@ final class GotoStmt extends Stmt {
    */
   public final String label;
 
+  /**
+   * The statement with that label.
+   */
+  Stmt target;
+
   /**
    * Creates a goto statement.
    */
@@ -339,14 +829,15 @@ final class GotoStmt extends Stmt {
     this.label = label;
   }
 
+  void resolve(Program program, MethodDef method) {
+    target = method.labelNamed(label);
+  }
+
   /**
    * Jumps to the given label, leaving all other components the same.
    */
-  public State step(FramePointer fp, ImmutableMap<Addr, Value> store, Kont kont) {
-    /*
-     * Stmt.forLabel(label) yields the statement that has that label.
-     */
-    return new State(Stmt.forLabel(label), fp, store, kont);
+  public void exec(Machine m) {
+    m.stmt = target;
   }
 }
 
@@ -364,7 +855,12 @@ final class IfStmt extends Stmt {
   /**
    * The condition te test.
    */
-  public final AExp condition;
+  public AExp condition;
+
+  /**
+   * The statement with the label.
+   */
+  Stmt target;
 
   /**
    * Creates an if statement.
@@ -375,18 +871,27 @@ final class IfStmt extends Stmt {
     this.condition = condition;
   }
 
+  void link(FrameLayout layout) {
+    condition.link(layout);
+  }
+
+  void resolve(Program program, MethodDef method) {
+    condition.resolve(program);
+    target = method.labelNamed(label);
+  }
+
   /**
    * Jumps to the target label if the condition is true, falling through
    * otherwise.
    */
-  public State step(FramePointer fp, ImmutableMap<Addr, Value> store, Kont kont) {
+  public void exec(Machine m) {
     // Test the condition:
-    if (condition.eval(fp, store).toBoolean())
+    if (condition.eval(m.fp, m.store).toBoolean())
       // if true, jump to the label:
-      return new State(Stmt.forLabel(label), fp, store, kont);
+      m.stmt = target;
     else
       // if not, fall through:
-      return new State(this.next, fp, store, kont);
+      m.stmt = this.next;
   }
 }
 
@@ -404,7 +909,12 @@ final class AssignAExpStmt extends Stmt {
   /**
    * The expression to evaluate.
    */
-  public final AExp rhs;
+  public AExp rhs;
+
+  /**
+   * The frame slot of the register.
+   */
+  int lhsSlot;
 
   /**
    * Creates a new assignment expression.
@@ -415,18 +925,24 @@ final class AssignAExpStmt extends Stmt {
     this.rhs = rhs;
   }
 
-  public State step(FramePointer fp, ImmutableMap<Addr, Value> store, Kont kont) {
-    // Compute the address of the register:
-    Addr a = fp.offset(lhs);
+  void link(FrameLayout layout) {
+    lhsSlot = layout.slot(lhs);
+    rhs.link(layout);
+  }
+
+  void resolve(Program program, MethodDef method) {
+    rhs.resolve(program);
+  }
 
+  public void exec(Machine m) {
     // Evaluate the right-hand side:
-    Value val = rhs.eval(fp, store);
+    Value val = rhs.eval(m.fp, m.store);
 
-    // Bind the result in the store:
-    ImmutableMap<Addr, Value> store_ = Store.extend(store, a, val);
+    // Bind the result in the register's slot:
+    m.store = m.store.bind(m.fp, lhsSlot, val);
 
-    // Construct the new state:
-    return new State(this.next, fp, store_, kont);
+    // Move on:
+    m.stmt = this.next;
   }
 }
 
@@ -446,7 +962,12 @@ final class NewStmt extends Stmt {
   public final String className;
 
   /**
-   * Creates an object allocation statement.
+   * The frame slot of the register.
+   */
+  int lhsSlot;
+
+  /**
+   * Creates an object allocation statement.
    */
   public NewStmt(Stmt next, String lhs, String className) {
     super(next);
@@ -454,22 +975,40 @@ final class NewStmt extends Stmt {
     this.className = className;
   }
 
-  public State step(FramePointer fp, ImmutableMap<Addr, Value> store, Kont kont) {
+  void link(FrameLayout layout) {
+    lhsSlot = layout.slot(lhs);
+  }
+
+  /* The class, or null if it is not defined. */
+  private ClassDef classs;
+
+  void resolve(Program program, MethodDef method) {
+    classs = program.classNamed(className);
+  }
+
+  /**
+   * Returns the class to allocate.
+   */
+  ClassDef classs() {
+    if (classs == null)
+      throw new RuntimeException("no such class: " + className);
+    return classs;
+  }
 
-    // Compute the address of the register:
-    Addr a = fp.offset(lhs);
+  public void exec(Machine m) {
 
     // Construct a new object pointer:
     ObjectPointer op = new ObjectPointer();
 
     // Construct the object intself:
-    ObjectValue object = new ObjectValue(className, op);
+    ClassDef c = classs();
+    ObjectValue object = new ObjectValue(c, c.fieldLayout(), op);
 
-    // Bind the register to the object:
-    ImmutableMap<Addr, Value> store_ = Store.extend(store, a, object);
+    // Allocate its fields and bind the register to the object:
+    m.store = m.store.batch().allocObject(object).bind(m.fp, lhsSlot, object).publish();
 
-    // Construct the new state:
-    return new State(this.next, fp, store_, kont);
+    // Move on:
+    m.stmt = this.next;
   }
 
 }
@@ -494,41 +1033,139 @@ abstract class AbstractInvokeStmt extends Stmt {
    */
   public final AExp[] args;
 
-  public AbstractInvokeStmt(Stmt next, String lhs, String methodName, AExp[] args) {
+  /**
+   * The frame slot of the register receiving the result.
+   */
+  int lhsSlot;
+
+  /**
+   * The method lookups at this call site, shared by every form of its code.
+   */
+  final InlineCache cache;
+
+  /**
+   * Whether the call is in tail position: all that follows it, but for labels
+   * and skips, is a return of its result. Set when the program is loaded.
+   */
+  boolean tail;
+
+  public AbstractInvokeStmt(Stmt next, String lhs, String methodName, AExp[] args,
+      boolean isSuper) {
     super(next);
     this.lhs = lhs;
     this.methodName = methodName;
     this.args = args;
+    this.cache = new InlineCache(methodName, isSuper);
+  }
+
+  void link(FrameLayout layout) {
+    lhsSlot = layout.slot(lhs);
+    for (AExp arg : args)
+      arg.link(layout);
+  }
+
+  void resolve(Program program, MethodDef method) {
+    for (AExp arg : args)
+      arg.resolve(program);
+
+    Stmt s = next;
+    while (s instanceof LabelStmt || s instanceof SkipStmt)
+      s = s.next;
+    AExp result = s instanceof ReturnStmt ? ((ReturnStmt) s).result : null;
+    tail = result instanceof RegisterExp && ((RegisterExp) result).register.equals(lhs);
   }
 
   /**
    * Applies the given method on the specified object.
    */
-  protected State applyMethod(MethodDef m, ObjectValue thiss, FramePointer fp,
-      ImmutableMap<Addr, Value> store, Kont kont) {
+  protected void applyMethod(MethodDef method, ObjectValue thiss, Machine m) {
+    if (!(tail && tailCall(method.body, method, thiss, args, m)))
+      call(method.body, method, thiss, args, lhsSlot, next, m);
+  }
 
-    // Move to the body of the procedure:
-    Stmt stmt = m.body;
+  /**
+   * Enters a method, arranging for its result to be assigned to a register of
+   * the calling frame when it returns.
+   * 
+   * @param entry
+   *          the statement at which to start the method
+   * @param method
+   *          the method to enter
+   * @param thiss
+   *          the receiver
+   * @param args
+   *          the arguments, evaluated in the calling frame
+   * @param lhsSlot
+   *          the slot of the register receiving the result
+   * @param returnTo
+   *          the statement at which to resume after the call
+   * @param m
+   *          the machine to update
+   */
+  static void call(Stmt entry, MethodDef method, ObjectValue thiss, AExp[] args, int lhsSlot,
+      Stmt returnTo, Machine m) {
+    call(entry, method, thiss, args, lhsSlot, returnTo, null, m);
+  }
+
+  /**
+   * Enters a method from compiled code whose handlers are static.
+   * 
+   * @param catches
+   *          the handlers in force at the call in the calling method
+   * @see #call(Stmt, MethodDef, ObjectValue, AExp[], int, Stmt, Machine)
+   */
+  static void call(Stmt entry, MethodDef method, ObjectValue thiss, AExp[] args, int lhsSlot,
+      Stmt returnTo, Catch catches, Machine m) {
+    FramePointer fp = m.fp;
 
     // Allocate a new frame pointer:
     FramePointer fp_ = fp.push();
 
-    // Capture the return context as a continuation:
-    Kont kont_ = new AssignKont(this.lhs, this.next, fp, kont);
+    // Push the return context:
+    m.stack.pushReturn(lhsSlot, returnTo, fp, catches);
 
-    // Bind $this:
-    ImmutableMap<Addr, Value> store_ = store;
-    store_ = Store.extend(store_, fp_.offset("$this"), thiss);
+    // Bind $this and the arguments in the new frame:
+    Value[] frame = new Value[method.frameSize];
+    frame[FrameLayout.THIS_SLOT] = thiss;
+    for (int i = 0; i < method.formals.length; ++i) {
+      frame[method.formalSlots[i]] = args[i].eval(fp, m.store);
+    }
+
+    // Allocate the frame in the store:
+    m.store = m.store.alloc(fp_, frame);
+
+    // Move to the body of the procedure:
+    m.stmt = entry;
+    m.fp = fp_;
+  }
+
+  /**
+   * Enters a method in place of the current one, when the call is in tail
+   * position. Nothing is pushed, so the callee returns straight to the
+   * current continuation, and its frame replaces the caller's at the same
+   * pointer; a tail-recursive loop runs in constant stack and store.
+   * 
+   * @return false, having done nothing, if a handler the current method pushed
+   *         is still in force and so must stay on the stack
+   * @see #call(Stmt, MethodDef, ObjectValue, AExp[], int, Stmt, Machine)
+   */
+  static boolean tailCall(Stmt entry, MethodDef method, ObjectValue thiss, AExp[] args,
+      Machine m) {
+    if (m.stack.isHandlerOnTop(m.kont))
+      return false;
+    FramePointer fp = m.fp;
 
-    // Bind addresses to values of arguments:
-    for (int i = 0; i < m.formals.length; ++i) {
-      Addr a = fp_.offset(m.formals[i]);
-      Value v = args[i].eval(fp, store);
-      store_ = Store.extend(store_, a, v);
+    // Bind $this and the arguments, reading them from the old frame:
+    Value[] frame = new Value[method.frameSize];
+    frame[FrameLayout.THIS_SLOT] = thiss;
+    for (int i = 0; i < method.formals.length; ++i) {
+      frame[method.formalSlots[i]] = args[i].eval(fp, m.store);
     }
 
-    // Create the new state:
-    return new State(stmt, fp_, store_, kont_);
+    // Replace the old frame:
+    m.store = m.store.alloc(fp, frame);
+    m.stmt = entry;
+    return true;
   }
 
 }
@@ -547,23 +1184,30 @@ final class InvokeStmt extends AbstractInvokeStmt {
    * Creates a method invocation statement.
    */
   public InvokeStmt(Stmt next, String lhs, AExp object, String methodName, AExp[] args) {
-    super(next, lhs, methodName, args);
+    super(next, lhs, methodName, args, false);
     this.object = object;
   }
 
-  public State step(FramePointer fp, ImmutableMap<Addr, Value> store, Kont kont) {
+  void link(FrameLayout layout) {
+    super.link(layout);
+    object.link(layout);
+  }
 
-    // Look up the object:
-    ObjectValue thiss = (ObjectValue) object.eval(fp, store);
+  void resolve(Program program, MethodDef method) {
+    super.resolve(program, method);
+    object.resolve(program);
+  }
+
+  public void exec(Machine m) {
 
-    // Check its class:
-    ClassDef classs = ClassDef.forName(thiss.className);
+    // Look up the object:
+    ObjectValue thiss = (ObjectValue) object.eval(m.fp, m.store);
 
-    // Look up the method in this class:
-    MethodDef method = classs.lookupMethod(methodName);
+    // Look up the method in its class:
+    MethodDef method = cache.lookup(thiss);
 
     // Apply the method:
-    return applyMethod(method, thiss, fp, store, kont);
+    applyMethod(method, thiss, m);
   }
 }
 
@@ -572,26 +1216,29 @@ final class InvokeStmt extends AbstractInvokeStmt {
  */
 final class InvokeSuperStmt extends AbstractInvokeStmt {
 
+  /**
+   * The method called, resolved in the parent of the enclosing class when the
+   * program is linked; until then it is looked up at every call.
+   */
+  MethodDef target;
+
   /**
    * Creates super method invocation statement.
    */
   public InvokeSuperStmt(Stmt next, String lhs, String methodName, AExp[] args) {
-    super(next, lhs, methodName, args);
+    super(next, lhs, methodName, args, true);
   }
 
-  public State step(FramePointer fp, ImmutableMap<Addr, Value> store, Kont kont) {
+  public void exec(Machine m) {
 
     // First, get "this":
-    ObjectValue thiss = (ObjectValue) store.get(fp.offset("$this"));
+    ObjectValue thiss = (ObjectValue) m.store.lookup(m.fp, FrameLayout.THIS_SLOT);
 
-    // Find the parent of "this":
-    ClassDef parent = ClassDef.forName(thiss.className).parentClass();
-
-    // Look up the method in the parent:
-    MethodDef method = parent.lookupMethod(methodName);
+    // Look up the method in the parent of its class, unless linked:
+    MethodDef method = target != null ? target : cache.lookup(thiss);
 
     // Apply the method:
-    return applyMethod(method, thiss, fp, store, kont);
+    applyMethod(method, thiss, m);
   }
 }
 
@@ -613,12 +1260,20 @@ final class ReturnStmt extends Stmt {
     this.result = result;
   }
 
-  public State step(FramePointer fp, ImmutableMap<Addr, Value> store, Kont kont) {
+  void link(FrameLayout layout) {
+    result.link(layout);
+  }
+
+  void resolve(Program program, MethodDef method) {
+    result.resolve(program);
+  }
+
+  public void exec(Machine m) {
     // Compute the return value:
-    Value returnValue = result.eval(fp, store);
+    Value returnValue = result.eval(m.fp, m.store);
 
     // Apply the current continuation:
-    return kont.apply(returnValue, store);
+    m.stack.apply(returnValue, m);
   }
 }
 
@@ -640,14 +1295,24 @@ final class PrintStmt extends Stmt {
     this.args = args;
   }
 
-  public State step(FramePointer fp, ImmutableMap<Addr, Value> store, Kont kont) {
+  void link(FrameLayout layout) {
+    for (AExp arg : args)
+      arg.link(layout);
+  }
+
+  void resolve(Program program, MethodDef method) {
+    for (AExp arg : args)
+      arg.resolve(program);
+  }
+
+  public void exec(Machine m) {
     // Print the arguments
     for (AExp object : args) {
-      Value val = object.eval(fp, store);
+      Value val = object.eval(m.fp, m.store);
       System.out.println(val.toPrint());
     }
 
-    return new State(this.next, fp, store, kont);
+    m.stmt = this.next;
   }
 }
 
@@ -669,7 +1334,10 @@ final class FieldAssignStmt extends Stmt {
   /**
    * The value to be assigned.
    */
-  public final AExp rhs;
+  public AExp rhs;
+
+  /* The slot of the field, per receiver layout. */
+  private final FieldCache fieldCache;
 
   /**
    * Creates a new field assignment statement.
@@ -679,24 +1347,35 @@ final class FieldAssignStmt extends Stmt {
     this.object = object;
     this.field = field;
     this.rhs = rhs;
+    this.fieldCache = new FieldCache(field);
+  }
+
+  void link(FrameLayout layout) {
+    object.link(layout);
+    rhs.link(layout);
+  }
+
+  void resolve(Program program, MethodDef method) {
+    object.resolve(program);
+    rhs.resolve(program);
   }
 
-  public State step(FramePointer fp, ImmutableMap<Addr, Value> store, Kont kont) {
+  public void exec(Machine m) {
 
     // Evaluate the object:
-    Value obj = object.eval(fp, store);
+    ObjectValue obj = (ObjectValue) object.eval(m.fp, m.store);
 
     // Evaluate the right-hand side:
-    Value val = rhs.eval(fp, store);
+    Value val = rhs.eval(m.fp, m.store);
 
-    // Compute the address of the field:
-    Addr fieldAddr = obj.offset(field);
+    // Find the slot of the field:
+    int slot = fieldCache.slot(obj.layout);
 
-    // Bind the field address in the store:
-    ImmutableMap<Addr, Value> store_ = Store.extend(store, fieldAddr, val);
+    // Bind the field slot in the store:
+    m.store = m.store.bind(obj.pointer, slot, val);
 
-    // Create the next state:
-    return new State(next, fp, store_, kont);
+    // Move on:
+    m.stmt = next;
   }
 }
 
@@ -715,6 +1394,16 @@ final class PushHandlerStmt extends Stmt {
    */
   public String label;
 
+  /**
+   * The class of exceptions to catch, or null if it is not defined.
+   */
+  ClassDef classs;
+
+  /**
+   * The statement with the label.
+   */
+  Stmt target;
+
   /**
    * Creates a handler-pushing statement.
    */
@@ -724,13 +1413,18 @@ final class PushHandlerStmt extends Stmt {
     this.label = label;
   }
 
-  public State step(FramePointer fp, ImmutableMap<Addr, Value> store, Kont kont) {
+  void resolve(Program program, MethodDef method) {
+    classs = program.classNamed(className);
+    target = method.labelNamed(label);
+  }
+
+  public void exec(Machine m) {
 
-    // Create a new continuation:
-    Kont kont_ = new HandlerKont(className, label, kont);
+    // Push a new handler:
+    m.stack.pushHandler(classs, target);
 
-    // Continuation to the next statement:
-    return new State(next, fp, store, kont_);
+    // Continue to the next statement:
+    m.stmt = next;
   }
 }
 
@@ -743,13 +1437,13 @@ final class PopHandlerStmt extends Stmt {
     super(next);
   }
 
-  public State step(FramePointer fp, ImmutableMap<Addr, Value> store, Kont kont) {
+  public void exec(Machine m) {
 
     // Pop off the topmost handler:
-    Kont kont_ = kont.popHandler();
+    m.stack.popHandler(m);
 
     // Continue to the next statement:
-    return new State(next, fp, store, kont_);
+    m.stmt = next;
   }
 }
 
@@ -771,13 +1465,21 @@ final class ThrowStmt extends Stmt {
     this.exception = exception;
   }
 
-  public State step(FramePointer fp, ImmutableMap<Addr, Value> store, Kont kont) {
+  void link(FrameLayout layout) {
+    exception.link(layout);
+  }
+
+  void resolve(Program program, MethodDef method) {
+    exception.resolve(program);
+  }
+
+  public void exec(Machine m) {
 
     // Evaluate the exception to be thrown:
-    Value exceptionValue = exception.eval(fp, store);
+    Value exceptionValue = exception.eval(m.fp, m.store);
 
     // Throw it at the stack:
-    return kont.handle((ObjectValue) exceptionValue, fp, store);
+    m.stack.handle((ObjectValue) exceptionValue, m);
   }
 }
 
@@ -793,6 +1495,11 @@ final class MoveExceptionStmt extends Stmt {
    */
   public final String register;
 
+  /**
+   * The frame slot of the register.
+   */
+  int registerSlot;
+
   /**
    * Creates a statement to capture the most recent exception.
    */
@@ -801,16 +1508,20 @@ final class MoveExceptionStmt extends Stmt {
     this.register = register;
   }
 
-  public State step(FramePointer fp, ImmutableMap<Addr, Value> store, Kont kont) {
+  void link(FrameLayout layout) {
+    registerSlot = layout.slot(register);
+  }
+
+  public void exec(Machine m) {
 
     // Capture the most recent exception from $ex:
-    Value ex = store.get(fp.offset("$ex"));
+    Value ex = m.store.lookup(m.fp, FrameLayout.EX_SLOT);
 
     // Move the exception into the register:
-    ImmutableMap<Addr, Value> store_ = Store.extend(store, fp.offset(register), ex);
+    m.store = m.store.bind(m.fp, registerSlot, ex);
 
     // Step to the next statement:
-    return new State(next, fp, store_, kont);
+    m.stmt = next;
   }
 
 }
@@ -833,15 +1544,46 @@ abstract class AExp {
    *          the current store
    * @return the result of the expression
    */
-  abstract Value eval(FramePointer fp, ImmutableMap<Addr, Value> store);
+  abstract Value eval(FramePointer fp, Store store);
+
+  /**
+   * Returns the value of this expression, which must be an integer, without
+   * boxing it. Arithmetic evaluates its arguments this way, so nested
+   * operations build no intermediate values.
+   * 
+   * @param fp
+   *          the active frame pointer
+   * @param store
+   *          the current store
+   * @return the integer result of the expression
+   */
+  int evalInt(FramePointer fp, Store store) {
+    return eval(fp, store).toInt();
+  }
+
+  /**
+   * Resolves the registers this expression mentions to frame slots.
+   * 
+   * @param layout
+   *          the frame layout of the enclosing method
+   */
+  void link(FrameLayout layout) {}
+
+  /**
+   * Resolves the classes this expression names.
+   * 
+   * @param program
+   *          the program the expression was loaded into
+   */
+  void resolve(Program program) {}
 }
 
 /**
  * An expression that represents the current object.
  */
 class ThisExp extends AExp {
-  Value eval(FramePointer fp, ImmutableMap<Addr, Value> store) {
-    return store.get(fp.offset("$this"));
+  Value eval(FramePointer fp, Store store) {
+    return store.lookup(fp, FrameLayout.THIS_SLOT);
   }
 }
 
@@ -859,7 +1601,7 @@ class BooleanExp extends AExp {
     this.value = value;
   }
 
-  Value eval(FramePointer fp, ImmutableMap<Addr, Value> store) {
+  Value eval(FramePointer fp, Store store) {
     if (value)
       return TrueValue.VALUE;
     else
@@ -871,7 +1613,7 @@ class BooleanExp extends AExp {
  * An expression to represent the null value.
  */
 class NullExp extends AExp {
-  Value eval(FramePointer fp, ImmutableMap<Addr, Value> store) {
+  Value eval(FramePointer fp, Store store) {
     return NullValue.VALUE;
   }
 }
@@ -880,7 +1622,7 @@ class NullExp extends AExp {
  * An expression to represent a lack of value.
  */
 class VoidExp extends AExp {
-  Value eval(FramePointer fp, ImmutableMap<Addr, Value> store) {
+  Value eval(FramePointer fp, Store store) {
     return VoidValue.VALUE;
   }
 }
@@ -895,16 +1637,22 @@ class RegisterExp extends AExp {
    */
   public final String register;
 
+  /**
+   * The frame slot of the register.
+   */
+  int slot;
+
   public RegisterExp(String register) {
     this.register = register;
   }
 
-  Value eval(FramePointer fp, ImmutableMap<Addr, Value> store) {
-    // Compute the address of the offset:
-    Addr a = fp.offset(register);
+  void link(FrameLayout layout) {
+    slot = layout.slot(register);
+  }
 
-    // Look up the address in the store:
-    return store.get(a);
+  Value eval(FramePointer fp, Store store) {
+    // Look up the register's slot in the current frame:
+    return store.lookup(fp, slot);
   }
 }
 
@@ -914,12 +1662,20 @@ class RegisterExp extends AExp {
 class IntExp extends AExp {
   public final int value;
 
+  /* The value, allocated once. */
+  private final IntValue constant;
+
   public IntExp(int value) {
     this.value = value;
+    this.constant = IntValue.of(value);
   }
 
-  Value eval(FramePointer fp, ImmutableMap<Addr, Value> store) {
-    return new IntValue(value);
+  Value eval(FramePointer fp, Store store) {
+    return constant;
+  }
+
+  int evalInt(FramePointer fp, Store store) {
+    return value;
   }
 }
 
@@ -953,7 +1709,29 @@ class AtomicOpExp extends AExp {
     this.args = args;
   }
 
-  Value eval(FramePointer fp, ImmutableMap<Addr, Value> store) {
+  void link(FrameLayout layout) {
+    for (AExp arg : args)
+      arg.link(layout);
+  }
+
+  void resolve(Program program) {
+    for (AExp arg : args)
+      arg.resolve(program);
+  }
+
+  Value eval(FramePointer fp, Store store) {
+    if (op == PrimOp.EQ) {
+      // Check for equality: arg[0] == arg[1] ?
+      int x = args[0].evalInt(fp, store);
+      int y = args[1].evalInt(fp, store);
+      return Value.from(x == y);
+    }
+
+    // Box only the final result:
+    return IntValue.of(evalInt(fp, store));
+  }
+
+  int evalInt(FramePointer fp, Store store) {
 
     // Dispatch on the type of the operation:
     switch (op) {
@@ -962,29 +1740,26 @@ class AtomicOpExp extends AExp {
       // Evaluate and sum all arguments:
       int sum = 0;
       for (int i = 0; i < args.length; ++i) {
-        sum += args[i].eval(fp, store).toInt();
+        sum += args[i].evalInt(fp, store);
       }
-      return new IntValue(sum);
+      return sum;
 
     case MUL:
       // Evaluate and multiply all arguments:
       int prod = 1;
       for (int i = 0; i < args.length; ++i) {
-        prod *= args[i].eval(fp, store).toInt();
+        prod *= args[i].evalInt(fp, store);
       }
-      return new IntValue(prod);
+      return prod;
 
     case SUB:
       // Subtract: arg[0] - arg[1]
-      int a = args[0].eval(fp, store).toInt();
-      int b = args[1].eval(fp, store).toInt();
-      return new IntValue(a - b);
+      int a = args[0].evalInt(fp, store);
+      int b = args[1].evalInt(fp, store);
+      return a - b;
 
     case EQ:
-      // Check for equality: arg[0] == arg[1] ?
-      int x = args[0].eval(fp, store).toInt();
-      int y = args[1].eval(fp, store).toInt();
-      return Value.from(x == y);
+      return eval(fp, store).toInt();
 
     default:
       throw new RuntimeException("unhandled atomic op: " + op);
@@ -1012,23 +1787,35 @@ class InstanceOfExp extends AExp {
     this.className = className;
   }
 
-  Value eval(FramePointer fp, ImmutableMap<Addr, Value> store) {
+  /**
+   * The class checked for, or null if it is not defined, when nothing is an
+   * instance of it.
+   */
+  ClassDef classs;
+
+  void link(FrameLayout layout) {
+    object.link(layout);
+  }
+
+  void resolve(Program program) {
+    object.resolve(program);
+    classs = program.classNamed(className);
+  }
+
+  Value eval(FramePointer fp, Store store) {
     // Evaluate the object:
     ObjectValue obj = (ObjectValue) object.eval(fp, store);
 
-    // The class of the object:
-    ClassDef classs = ClassDef.forName(obj.className);
-
     // Create a boolean with the result:
-    return Value.from(classs.isInstanceOf(className));
+    return Value.from(obj.isInstanceOf(classs));
   }
 }
 
 /**
  * An expression to retrieve a field from an object.
  * 
- * An object is a base address -- an object pointer -- the addresses of fields
- * are computed as abstract "offsets" from this base pointer.
+ * An object is a base address -- an object pointer -- naming a record whose
+ * slots are given by the field layout of the object's class.
  */
 class FieldExp extends AExp {
 
@@ -1042,20 +1829,32 @@ class FieldExp extends AExp {
    */
   public final String field;
 
+  /* The slot of the field, per receiver layout. */
+  private final FieldCache fieldCache;
+
   public FieldExp(AExp object, String field) {
     this.object = object;
     this.field = field;
+    this.fieldCache = new FieldCache(field);
+  }
+
+  void link(FrameLayout layout) {
+    object.link(layout);
+  }
+
+  void resolve(Program program) {
+    object.resolve(program);
   }
 
-  Value eval(FramePointer fp, ImmutableMap<Addr, Value> store) {
+  Value eval(FramePointer fp, Store store) {
 
     // Evaluate the object:
     ObjectValue op = (ObjectValue) object.eval(fp, store);
 
-    // Compute the address of the field:
-    Addr fieldAddr = op.offset(field);
+    // Find the slot of the field:
+    int slot = fieldCache.slot(op.layout);
 
-    return store.get(fieldAddr);
+    return store.lookup(op.pointer, slot);
   }
 }
 
@@ -1071,11 +1870,75 @@ abstract class Pointer {
    */
   final long value;
 
+  /* The hash code, derived from the value so that it is stable across runs. */
+  private final int hash;
+
+  /* The canonical address of each slot, created on demand. */
+  private volatile OffsetAddr[] addrs = new OffsetAddr[0];
+
   protected Pointer() {
-    this.value = ++maxPointer;
+    this(maxPointer.incrementAndGet());
+  }
+
+  /**
+   * Recreates the pointer with the given value, as when reading it back from an
+   * encoded store.
+   */
+  protected Pointer(long value) {
+    this.value = value;
+    this.hash = (int) (value ^ (value >>> 32));
+  }
+
+  /* Shared by every program, so that concurrent runs never hand out the same value. */
+  private static final AtomicLong maxPointer = new AtomicLong();
+
+  /**
+   * Returns the canonical address of a slot in the record this pointer names.
+   * 
+   * Repeated calls with the same slot return the same address object.
+   * 
+   * @param slot
+   *          the slot in the record
+   * @return the address of the slot
+   */
+  public OffsetAddr offset(int slot) {
+    OffsetAddr[] as = addrs;
+    if (slot < as.length && as[slot] != null)
+      return as[slot];
+    return intern(slot);
+  }
+
+  private synchronized OffsetAddr intern(int slot) {
+    OffsetAddr[] as = addrs;
+    if (slot >= as.length) {
+      OffsetAddr[] grown = new OffsetAddr[Math.max(slot + 1, 2 * as.length)];
+      System.arraycopy(as, 0, grown, 0, as.length);
+      as = grown;
+    }
+    if (as[slot] == null)
+      as[slot] = newAddr(slot);
+    addrs = as;
+    return as[slot];
+  }
+
+  /**
+   * Creates the address of a slot; only called once per slot.
+   */
+  protected abstract OffsetAddr newAddr(int slot);
+
+  @Override
+  public int hashCode() {
+    return hash;
   }
 
-  private static long maxPointer = 0;
+  @Override
+  public boolean equals(Object o) {
+    if (this == o)
+      return true;
+    if (o == null || o.getClass() != getClass())
+      return false;
+    return ((Pointer) o).value == value;
+  }
 
   /**
    * An ordering on pointers.
@@ -1090,22 +1953,21 @@ abstract class Pointer {
         return 0;
     }
   };
-
-  /**
-   * Calculates an offset address from this pointer.
-   */
-  public abstract Addr offset(String name);
 }
 
 /**
- * A frame pointer is a pointer into the stack; local variables live as abstract
- * offsets from these pointers.
+ * A frame pointer is a pointer into the stack; each one names a frame record in
+ * the store, and local variables live in fixed slots of that record.
  */
 class FramePointer extends Pointer {
   public FramePointer() {
     super();
   }
 
+  FramePointer(long value) {
+    super(value);
+  }
+
   /**
    * Allocates a new frame pointer, as in when a new procedure is called.
    */
@@ -1113,18 +1975,14 @@ class FramePointer extends Pointer {
     return new FramePointer();
   }
 
-  /**
-   * Computes an abstract offset from this pointer, given the name of a register
-   * (a local variable).
-   */
-  public Addr offset(String register) {
-    return new FrameAddr(this, register);
+  protected OffsetAddr newAddr(int slot) {
+    return new FrameAddr(this, slot);
   }
 }
 
 /**
- * An object pointer is a pointer into the heap; fields live as abstract offsets
- * from these pointers.
+ * An object pointer is a pointer into the heap; each one names an object record
+ * in the store, and fields live in the slots given by the class's field layout.
  */
 class ObjectPointer extends Pointer {
 
@@ -1132,18 +1990,22 @@ class ObjectPointer extends Pointer {
     super();
   }
 
-  /**
-   * Computes an abstract offset from this pointer, given the name of the field.
-   */
-  public Addr offset(String fieldName) {
-    return new FieldAddr(this, fieldName);
+  ObjectPointer(long value) {
+    super(value);
+  }
+
+  protected OffsetAddr newAddr(int slot) {
+    return new FieldAddr(this, slot);
   }
 
 }
 
 /**
- * An offset address is a pairing of a pointer and an abstract offset (a
- * string).
+ * An offset address is a pairing of a pointer and a slot in the record it
+ * names.
+ * 
+ * Offset addresses are compared by value, and {@link Pointer#offset(int)}
+ * interns them, so they can key hash-based tables.
  */
 abstract class OffsetAddr extends Addr {
 
@@ -1153,25 +2015,46 @@ abstract class OffsetAddr extends Addr {
   public final Pointer pointer;
 
   /**
-   * The abstract offset.
+   * The slot in the record.
    */
-  public final String offset;
+  public final int slot;
+
+  /* The hash code, computed once. */
+  private final int hash;
 
-  public OffsetAddr(Pointer pointer, String offset) {
+  public OffsetAddr(int tag, Pointer pointer, int slot) {
+    super(tag);
     this.pointer = pointer;
-    this.offset = offset;
+    this.slot = slot;
+    this.hash = 31 * pointer.hashCode() + slot;
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o)
+      return true;
+    if (!(o instanceof OffsetAddr))
+      return false;
+    OffsetAddr oa = (OffsetAddr) o;
+    return oa.hash == hash && oa.tag == tag && oa.slot == slot
+        && oa.pointer.value == pointer.value;
   }
 
   /**
-   * An ordering on offset addresses.
+   * An ordering on offset addresses of the same kind: by pointer, then by slot.
    */
   public static final Comparator<OffsetAddr> ordering = new Comparator<OffsetAddr>() {
     public int compare(OffsetAddr oa1, OffsetAddr oa2) {
       if (oa1.pointer.value < oa2.pointer.value)
         return -1;
-      if (oa2.pointer.value > oa1.pointer.value)
+      if (oa1.pointer.value > oa2.pointer.value)
         return 1;
-      return oa1.offset.compareTo(oa2.offset);
+      return oa1.slot < oa2.slot ? -1 : (oa1.slot == oa2.slot ? 0 : 1);
     }
   };
 }
@@ -1180,8 +2063,8 @@ abstract class OffsetAddr extends Addr {
  * A frame address is an offset address in the stack.
  */
 class FrameAddr extends OffsetAddr {
-  public FrameAddr(FramePointer fp, String offset) {
-    super(fp, offset);
+  public FrameAddr(FramePointer fp, int slot) {
+    super(FRAME, fp, slot);
   }
 }
 
@@ -1189,8 +2072,8 @@ class FrameAddr extends OffsetAddr {
  * A field address is an offset address in the heap.
  */
 class FieldAddr extends OffsetAddr {
-  public FieldAddr(ObjectPointer op, String field) {
-    super(op, field);
+  public FieldAddr(ObjectPointer op, int slot) {
+    super(FIELD, op, slot);
   }
 }
 
@@ -1200,15 +2083,32 @@ class FieldAddr extends OffsetAddr {
 abstract class Addr {
 
   /**
-   * An ordering on addresses.
+   * The tag of frame addresses.
+   */
+  public static final int FRAME = 0;
+
+  /**
+   * The tag of field addresses.
+   */
+  public static final int FIELD = 1;
+
+  /**
+   * The kind of this address.
+   */
+  public final int tag;
+
+  protected Addr(int tag) {
+    this.tag = tag;
+  }
+
+  /**
+   * An ordering on addresses: by tag, then by pointer value, then by slot.
    */
   public static final Comparator<Addr> ordering = new Comparator<Addr>() {
     public int compare(Addr a1, Addr a2) {
-      // Use reflection to compare on class names first:
-      int cmp = a1.getClass().toString().compareTo(a2.getClass().toString());
-
-      if (cmp != 0)
-        return cmp;
+      // Compare on the kind of address first:
+      if (a1.tag != a2.tag)
+        return a1.tag < a2.tag ? -1 : 1;
 
       if (a1 instanceof OffsetAddr)
         return OffsetAddr.ordering.compare((OffsetAddr) a1, (OffsetAddr) a2);
@@ -1223,13 +2123,6 @@ abstract class Addr {
  */
 abstract class Value {
 
-  /**
-   * Assuming the value is an object pointer, compute an offset.
-   */
-  public Addr offset(String fieldName) {
-    throw new RuntimeException("cannot offset non-object pointer: " + this);
-  }
-
   /**
    * Convert the value to a Boolean.
    */
@@ -1319,9 +2212,36 @@ class VoidValue extends Value {
 
 /**
  * Integer values are encapsulated in their own class.
+ * 
+ * Integers are immutable, so the small ones are shared: {@link #of(int)}
+ * returns the same value for every integer from the value of the system
+ * property <code>oocesk.intcache.low</code> up to that of
+ * <code>oocesk.intcache.high</code>, -128 and 1023 by default. The cache is
+ * filled when the class is loaded, so it holds at most
+ * {@link #MAX_CACHE_SIZE} integers, counting up from the low end, whatever
+ * range the properties ask for.
  */
 class IntValue extends Value {
 
+  /**
+   * The most integers cached.
+   */
+  static final int MAX_CACHE_SIZE = 1 << 16;
+
+  /**
+   * The least integer cached.
+   */
+  static final int CACHE_LOW = Integer.getInteger("oocesk.intcache.low", -128);
+
+  private static final IntValue[] cache = newCache(CACHE_LOW,
+      Integer.getInteger("oocesk.intcache.high", 1023));
+
+  /**
+   * The greatest integer cached, which is less than {@link #CACHE_LOW} if the
+   * cache is empty.
+   */
+  static final int CACHE_HIGH = CACHE_LOW + cache.length - 1;
+
   /**
    * The value of this integer.
    */
@@ -1331,6 +2251,29 @@ class IntValue extends Value {
     this.value = value;
   }
 
+  /**
+   * Returns the value of an integer, shared if it is in the cached range.
+   */
+  public static IntValue of(int value) {
+    // Out of range, the index wraps around to outside the cache:
+    int i = value - CACHE_LOW;
+    if (i >= 0 && i < cache.length)
+      return cache[i];
+    return new IntValue(value);
+  }
+
+  /**
+   * Fills a cache of the integers from low up to high, or up to as many as
+   * the cache may hold.
+   */
+  static IntValue[] newCache(int low, int high) {
+    long size = Math.max(0, Math.min((long) high - low + 1, MAX_CACHE_SIZE));
+    IntValue[] cache = new IntValue[(int) size];
+    for (int i = 0; i < cache.length; ++i)
+      cache[i] = new IntValue(low + i);
+    return cache;
+  }
+
   public int toInt() {
     return value;
   }
@@ -1343,7 +2286,8 @@ class IntValue extends Value {
 }
 
 /**
- * An object value pairs an object pointer with the class name.
+ * An object value pairs an object pointer with the resolved class and the
+ * layout of the object's record.
  */
 class ObjectValue extends Value {
 
@@ -1353,29 +2297,31 @@ class ObjectValue extends Value {
   public final ObjectPointer pointer;
 
   /**
-   * The class name for the object's type.
+   * The class of the object.
    */
-  public final String className;
+  public final ClassDef classs;
 
-  public ObjectValue(String className, ObjectPointer pointer) {
-    this.className = className;
+  /**
+   * The field layout of the object's class.
+   */
+  public final FieldLayout layout;
+
+  public ObjectValue(ClassDef classs, FieldLayout layout, ObjectPointer pointer) {
+    this.classs = classs;
+    this.layout = layout;
     this.pointer = pointer;
   }
 
   /**
    * Checks whether this object is an instance of a class.
+   * 
+   * @param other
+   *          the class, or null for an undefined class, which has no instances
    */
-  public boolean isInstanceOf(String otherClassName) {
-    return ClassDef.forName(className).isInstanceOf(otherClassName);
+  public boolean isInstanceOf(ClassDef other) {
+    return other != null && classs.isSubclassOf(other);
   }
 
-  /**
-   * Properly computes an offset from the object pointer.
-   */
-  public Addr offset(String fieldName) {
-    return pointer.offset(fieldName);
-  }
-  
   @Override
   public String toPrint() {
     return "TODO";
@@ -1385,64 +2331,485 @@ class ObjectValue extends Value {
 /**
  * The store is a map from addresses to value.
  * 
- * The store in this machine is an ImmutableMap<Addr,Value>.
+ * Memory is organized as records: every frame pointer and object pointer names
+ * a Value[] record, and an address is a slot within one of them.
  * 
- * This class contains utility methods.
+ * The default store is persistent: extending it yields a new store and leaves
+ * the original intact, so every state of execution keeps its own view of
+ * memory. A {@link MutableStore} instead updates in place, for concrete runs
+ * that never revisit an earlier state.
  */
-class Store {
-  public static final ImmutableMap<Addr, Value> extend(ImmutableMap<Addr, Value> store, Addr addr,
-      Value value) {
-    return new ImmutableMap.Builder<Addr, Value>().putAll(store).put(addr, value).build();
-  }
-}
-
-/* Continuations. */
-
-/**
- * A continuation is a representation of the program stack.
- * 
- * Every continuation except the halt continuation will have a continuation
- * beneath it.
- */
-abstract class Kont {
+abstract class Store {
 
   /**
-   * The continuation beneath this one.
+   * Looks up a slot in a record.
+   * 
+   * @param pointer
+   *          the pointer naming the record
+   * @param slot
+   *          the slot of the register or field
+   * @return the value in the slot, or null if it is unbound
    */
-  public final Kont next;
+  public abstract Value lookup(Pointer pointer, int slot);
 
-  public Kont(Kont next) {
-    this.next = next;
-  }
+  /**
+   * Binds a slot in a record to a value.
+   * 
+   * @param pointer
+   *          the pointer naming the record
+   * @param slot
+   *          the slot of the register or field
+   * @param value
+   *          the value to place in the slot
+   * @return a store which agrees with this one except at the given slot
+   */
+  public abstract Store bind(Pointer pointer, int slot, Value value);
 
   /**
-   * Applies this continuation to a return value.
+   * Allocates a new record.
    * 
-   * This returns execution to the context in which the continuation was
-   * created. It is effectively procedure return.
+   * The store takes ownership of the array, which must not be modified
+   * afterwards.
    * 
-   * Any exception handlers in the way of the next return point are popped off.
+   * @param pointer
+   *          the pointer naming the new record
+   * @param record
+   *          the initial contents of the record
+   * @return a store which also contains the new record
    */
-  public abstract State apply(Value returnValue, ImmutableMap<Addr, Value> store);
+  public abstract Store alloc(Pointer pointer, Value[] record);
 
   /**
-   * Assuming the top of the stack is a handler, pop it off and return the next
-   * continuation.
+   * Allocates the record of a new object, with every field unbound.
+   * 
+   * @param object
+   *          the new object
+   * @return a store which also contains the object's record
    */
-  public Kont popHandler() {
-    throw new RuntimeException("no handler to pop!");
+  public Store allocObject(ObjectValue object) {
+    return alloc(object.pointer, object.layout.newRecord());
   }
 
   /**
-   * Invokes the top-most exception handler.
+   * Returns the record a pointer names, which the caller must not modify.
    * 
-   * Any return points in the way are popped off.
+   * @param pointer
+   *          the pointer naming the record
+   * @return the record, or null if there is none
+   */
+  abstract Value[] record(Pointer pointer);
+
+  /**
+   * Drops every record except those named by the given pointers.
+   * 
+   * @param live
+   *          the pointers whose records to keep
+   * @return a store with only the live records
+   */
+  public abstract Store retain(Collection<Pointer> live);
+
+  /**
+   * Returns the pointers of every record in the store.
+   */
+  public abstract Collection<Pointer> pointers();
+
+  /**
+   * Returns every bound address and its value, in address order.
+   */
+  public SortedMap<Addr, Value> toSortedMap() {
+    SortedMap<Addr, Value> map = new TreeMap<Addr, Value>(Addr.ordering);
+    for (Pointer pointer : pointers()) {
+      Value[] record = record(pointer);
+      for (int slot = 0; slot < record.length; ++slot) {
+        if (record[slot] != null)
+          map.put(pointer.offset(slot), record[slot]);
+      }
+    }
+    return map;
+  }
+
+  /**
+   * Returns the number of records.
+   */
+  public abstract int size();
+
+  /**
+   * Looks up the value at an address.
+   * 
+   * @param addr
+   *          the address to look up
+   * @return the value at the address, or null if it is unbound
+   */
+  public Value get(OffsetAddr addr) {
+    return lookup(addr.pointer, addr.slot);
+  }
+
+  /**
+   * Binds an address to a value.
+   * 
+   * @param addr
+   *          the address to bind
+   * @param value
+   *          the value to place at the address
+   * @return a store which agrees with this one except at the given address
+   */
+  public Store extend(OffsetAddr addr, Value value) {
+    return bind(addr.pointer, addr.slot, value);
+  }
+
+  /**
+   * Returns the empty store.
+   */
+  public static Store empty() {
+    return HashTrieStore.EMPTY;
+  }
+
+  /**
+   * Opens a batch of updates to this store.
+   * 
+   * The updates are published together as one new store; this store is left
+   * as it was, unless it is mutable.
+   * 
+   * @return a new batch
+   */
+  public Batch batch() {
+    return new Batch(this);
+  }
+
+  /**
+   * A batch of updates, applied to a store all at once.
+   * 
+   * The default batch applies each update as it comes, which is all a mutable
+   * store needs. A batch must not be used after it is published.
+   */
+  static class Batch {
+
+    private Store store;
+
+    protected Batch(Store store) {
+      this.store = store;
+    }
+
+    /**
+     * Binds a slot in a record to a value.
+     */
+    public Batch bind(Pointer pointer, int slot, Value value) {
+      store = store.bind(pointer, slot, value);
+      return this;
+    }
+
+    /**
+     * Allocates a new record; see {@link Store#alloc(Pointer, Value[])}.
+     */
+    public Batch alloc(Pointer pointer, Value[] record) {
+      store = store.alloc(pointer, record);
+      return this;
+    }
+
+    /**
+     * Allocates the record of a new object.
+     */
+    public Batch allocObject(ObjectValue object) {
+      store = store.allocObject(object);
+      return this;
+    }
+
+    /**
+     * Returns the store with every update in this batch applied.
+     */
+    public Store publish() {
+      return store;
+    }
+  }
+}
+
+/**
+ * A store backed by a persistent hash trie of records.
+ * 
+ * Extension shares structure with the original store, so it costs O(log32 n)
+ * plus a copy of the one record being written, rather than a copy of every
+ * binding.
+ */
+final class HashTrieStore extends Store {
+
+  static final HashTrieStore EMPTY = new HashTrieStore(HashTrie.<Pointer, Value[]> empty());
+
+  private final HashTrie<Pointer, Value[]> records;
+
+  private HashTrieStore(HashTrie<Pointer, Value[]> records) {
+    this.records = records;
+  }
+
+  public Value lookup(Pointer pointer, int slot) {
+    return records.get(pointer)[slot];
+  }
+
+  public Store bind(Pointer pointer, int slot, Value value) {
+    // Records are small, so copy the one being written:
+    Value[] record = records.get(pointer).clone();
+    record[slot] = value;
+    return new HashTrieStore(records.put(pointer, record));
+  }
+
+  public Store alloc(Pointer pointer, Value[] record) {
+    return new HashTrieStore(records.put(pointer, record));
+  }
+
+  Value[] record(Pointer pointer) {
+    return records.get(pointer);
+  }
+
+  public Collection<Pointer> pointers() {
+    return records.keys();
+  }
+
+  public Store retain(Collection<Pointer> live) {
+    // Rebuild from the survivors, which are usually few:
+    HashTrie.Transient<Pointer, Value[]> records_ = HashTrie.<Pointer, Value[]> empty()
+        .asTransient();
+    for (Pointer pointer : live)
+      records_.put(pointer, records.get(pointer));
+    return new HashTrieStore(records_.persistent());
+  }
+
+  public Batch batch() {
+    return new TransientBatch(records);
+  }
+
+  /**
+   * A batch over a transient trie: each record written is copied once, then
+   * updated in place for the rest of the batch.
+   */
+  private static final class TransientBatch extends Batch {
+
+    private static final Value[][] NO_RECORDS = new Value[0][];
+
+    private HashTrie.Transient<Pointer, Value[]> records;
+
+    /*
+     * Records created by this batch, which it may still modify. A batch writes
+     * only a record or two, so a scan finds them sooner than a hash set would.
+     */
+    private Value[][] owned = NO_RECORDS;
+
+    private int ownedCount;
+
+    TransientBatch(HashTrie<Pointer, Value[]> records) {
+      super(null);
+      this.records = records.asTransient();
+    }
+
+    public Batch bind(Pointer pointer, int slot, Value value) {
+      Value[] record = records.get(pointer);
+      if (!owns(record)) {
+        record = record.clone();
+        own(record);
+        records.put(pointer, record);
+      }
+      record[slot] = value;
+      return this;
+    }
+
+    public Batch alloc(Pointer pointer, Value[] record) {
+      records.put(pointer, record);
+      return this;
+    }
+
+    public Batch allocObject(ObjectValue object) {
+      Value[] record = object.layout.newRecord();
+      own(record);
+      records.put(object.pointer, record);
+      return this;
+    }
+
+    public Store publish() {
+      HashTrieStore store = new HashTrieStore(records.persistent());
+      records = null;
+      return store;
+    }
+
+    private boolean owns(Value[] record) {
+      for (int i = 0; i < ownedCount; ++i) {
+        if (owned[i] == record)
+          return true;
+      }
+      return false;
+    }
+
+    private void own(Value[] record) {
+      if (ownedCount == owned.length)
+        owned = Arrays.copyOf(owned, Math.max(2, 2 * ownedCount));
+      owned[ownedCount++] = record;
+    }
+  }
+
+  public int size() {
+    return records.size();
+  }
+}
+
+/**
+ * A store which is updated in place.
+ * 
+ * Extending a mutable store modifies it and returns it, so states which share
+ * it are not snapshots: only the most recent state sees a consistent store.
+ * 
+ * A sorted mutable store keeps its records ordered by pointer, so iterating
+ * over it is deterministic.
+ */
+final class MutableStore extends Store {
+
+  private final Map<Pointer, Value[]> records;
+
+  /**
+   * Creates an empty mutable store.
+   */
+  public MutableStore() {
+    this(new HashMap<Pointer, Value[]>());
+  }
+
+  private MutableStore(Map<Pointer, Value[]> records) {
+    this.records = records;
+  }
+
+  /**
+   * Creates an empty mutable store whose records are kept in pointer order.
+   */
+  public static MutableStore sorted() {
+    return new MutableStore(new TreeMap<Pointer, Value[]>(Pointer.ordering));
+  }
+
+  /* The most recently accessed record, which is usually the current frame. */
+  private Pointer lastPointer;
+
+  private Value[] lastRecord;
+
+  private Value[] cached(Pointer pointer) {
+    if (pointer != lastPointer) {
+      lastRecord = records.get(pointer);
+      lastPointer = pointer;
+    }
+    return lastRecord;
+  }
+
+  public Value lookup(Pointer pointer, int slot) {
+    return cached(pointer)[slot];
+  }
+
+  public Store bind(Pointer pointer, int slot, Value value) {
+    cached(pointer)[slot] = value;
+    return this;
+  }
+
+  public Store alloc(Pointer pointer, Value[] record) {
+    records.put(pointer, record);
+    lastPointer = pointer;
+    lastRecord = record;
+    return this;
+  }
+
+  Value[] record(Pointer pointer) {
+    return records.get(pointer);
+  }
+
+  public Collection<Pointer> pointers() {
+    return records.keySet();
+  }
+
+  public Store retain(Collection<Pointer> live) {
+    records.keySet().retainAll(live);
+    lastPointer = null;
+    lastRecord = null;
+    return this;
+  }
+
+  public int size() {
+    return records.size();
+  }
+}
+
+/* Continuations. */
+
+/**
+ * A continuation is a representation of the program stack.
+ * 
+ * Every continuation except the halt continuation will have a continuation
+ * beneath it.
+ */
+abstract class Kont {
+
+  /**
+   * The continuation beneath this one.
+   */
+  public final Kont next;
+
+  public Kont(Kont next) {
+    this.next = next;
+  }
+
+  /**
+   * Applies this continuation to a return value.
+   * 
+   * This returns execution to the context in which the continuation was
+   * created. It is effectively procedure return.
+   * 
+   * Any exception handlers in the way of the next return point are popped off.
+   * 
+   * @param returnValue
+   *          the value being returned
+   * @param m
+   *          the machine whose registers to update
+   */
+  public abstract void apply(Value returnValue, Machine m);
+
+  /**
+   * Assuming the top of the stack is a handler, pop it off and return the next
+   * continuation.
+   */
+  public Kont popHandler() {
+    throw new RuntimeException("no handler to pop!");
+  }
+
+  /**
+   * Invokes the top-most exception handler.
+   * 
+   * Any return points in the way are popped off.
    * 
    * It continues down the stack until it finds a handler's type that matches
-   * the exception.
+   * the exception. The machine's frame pointer is that of the frame the
+   * exception is currently passing through. The stack is walked in a loop, so
+   * unwinding through any number of frames takes no Java stack.
+   * 
+   * @param exception
+   *          the exception being thrown
+   * @param m
+   *          the machine whose registers to update
+   */
+  public final void handle(ObjectValue exception, Machine m) {
+    Kont k = this;
+    while (!k.tryHandle(exception, m))
+      k = k.next;
+  }
+
+  /**
+   * Tries to catch an exception with this continuation alone.
+   * 
+   * @param exception
+   *          the exception being thrown
+   * @param m
+   *          the machine whose registers to update
+   * @return true if the exception was caught, or false if it passes on to the
+   *         next continuation
+   */
+  protected abstract boolean tryHandle(ObjectValue exception, Machine m);
+
+  /**
+   * Adds the frame pointers this continuation keeps alive to the given list.
+   * 
+   * @param roots
+   *          the list of garbage-collection roots
    */
-  public abstract State handle(ObjectValue exception, FramePointer fp,
-      ImmutableMap<Addr, Value> store);
+  public void addRoots(List<Pointer> roots) {}
 }
 
 /**
@@ -1452,28 +2819,28 @@ abstract class Kont {
 class HandlerKont extends Kont {
 
   /**
-   * The class name for the exception.
+   * The class of exceptions caught, or null if it is undefined.
    */
-  public final String className;
+  public final ClassDef classs;
 
   /**
-   * The label to which the jump after catching the exception.
+   * The statement to which to jump after catching the exception.
    */
-  public final String label;
+  public final Stmt target;
 
-  public HandlerKont(String className, String label, Kont kont) {
+  public HandlerKont(ClassDef classs, Stmt target, Kont kont) {
     super(kont);
 
-    this.className = className;
-    this.label = label;
+    this.classs = classs;
+    this.target = target;
   }
 
   /**
    * Continuation handlers can't be applied for procedure return, so they go to
    * the next one.
    */
-  public State apply(Value returnValue, ImmutableMap<Addr, Value> store) {
-    return next.apply(returnValue, store);
+  public void apply(Value returnValue, Machine m) {
+    next.apply(returnValue, m);
   }
 
   /**
@@ -1483,15 +2850,69 @@ class HandlerKont extends Kont {
     return next;
   }
 
-  public State handle(ObjectValue exception, FramePointer fp, ImmutableMap<Addr, Value> store) {
-    if (exception.isInstanceOf(className)) {
-      // Place the exception at (fp,"$ex")
-      ImmutableMap<Addr, Value> store_ = Store.extend(store, fp.offset("$ex"), exception);
-      return new State(Stmt.forLabel(label), fp, store_, next);
-    }
+  protected boolean tryHandle(ObjectValue exception, Machine m) {
+    if (!exception.isInstanceOf(classs))
+      return false;
 
-    else
-      return next.handle(exception, fp, store);
+    // Place the exception in the $ex slot of the frame:
+    m.store = m.store.bind(m.fp, FrameLayout.EX_SLOT, exception);
+    m.stmt = target;
+    m.kont = next;
+    return true;
+  }
+}
+
+/**
+ * An entry of a static handler table: the class of exceptions to catch and the
+ * statement to continue at, above the entries of the enclosing handlers.
+ * 
+ * Code compiled with a {@link HandlerTable} pushes no handler continuations;
+ * each statement that may raise an exception holds the entries in force
+ * there instead, and they are only consulted when an exception is thrown.
+ */
+final class Catch {
+
+  /**
+   * The class of exceptions caught, or null if it is undefined.
+   */
+  final ClassDef classs;
+
+  /**
+   * The statement at which to continue after catching an exception.
+   */
+  Stmt target;
+
+  /**
+   * The handler this one is nested in.
+   */
+  final Catch outer;
+
+  Catch(ClassDef classs, Catch outer) {
+    this.classs = classs;
+    this.outer = outer;
+  }
+
+  /**
+   * Finds the innermost of the given handlers that catches an exception, and
+   * moves to it in the machine's current frame.
+   * 
+   * @param catches
+   *          the handlers in force, or null for none
+   * @param exception
+   *          the exception being thrown
+   * @param m
+   *          the machine to update
+   * @return true if the exception was caught
+   */
+  static boolean handle(Catch catches, ObjectValue exception, Machine m) {
+    for (Catch c = catches; c != null; c = c.outer) {
+      if (exception.isInstanceOf(c.classs)) {
+        m.store = m.store.bind(m.fp, FrameLayout.EX_SLOT, exception);
+        m.stmt = c.target;
+        return true;
+      }
+    }
+    return false;
   }
 }
 
@@ -1501,9 +2922,9 @@ class HandlerKont extends Kont {
 class AssignKont extends Kont {
 
   /**
-   * The register awaiting the result.
+   * The frame slot of the register awaiting the result.
    */
-  public final String register;
+  public final int slot;
 
   /**
    * The statement at which to resume.
@@ -1515,31 +2936,55 @@ class AssignKont extends Kont {
    */
   public final FramePointer fp;
 
-  public AssignKont(String register, Stmt stmt, FramePointer fp, Kont kont) {
+  /**
+   * The static handlers of the caller in force at the call, if the caller was
+   * compiled with a handler table.
+   */
+  public final Catch catches;
+
+  public AssignKont(int slot, Stmt stmt, FramePointer fp, Kont kont) {
+    this(slot, stmt, fp, null, kont);
+  }
+
+  public AssignKont(int slot, Stmt stmt, FramePointer fp, Catch catches, Kont kont) {
     super(kont);
-    this.register = register;
+    this.slot = slot;
     this.stmt = stmt;
     this.fp = fp;
+    this.catches = catches;
   }
 
   /**
    * Performs the impending assignment and restores the context.
    */
-  public State apply(Value returnValue, ImmutableMap<Addr, Value> store) {
+  public void apply(Value returnValue, Machine m) {
 
     // Place the result in the register:
-    ImmutableMap<Addr, Value> store_ = Store.extend(store, fp.offset(register), returnValue);
+    m.store = m.store.bind(fp, slot, returnValue);
 
     // Restore the old context:
-    return new State(stmt, fp, store_, next);
+    m.stmt = stmt;
+    m.fp = fp;
+    m.kont = next;
   }
 
   /**
-   * Skips down the stack to the next handler.
+   * Tries the static handlers of the caller, if any.
    */
-  public State handle(ObjectValue exception, FramePointer fp, ImmutableMap<Addr, Value> store) {
+  protected boolean tryHandle(ObjectValue exception, Machine m) {
     // Pick up the current pointer:
-    return next.handle(exception, this.fp, store);
+    m.fp = this.fp;
+    if (!Catch.handle(catches, exception, m))
+      return false;
+    m.kont = next;
+    return true;
+  }
+
+  /**
+   * The frame to be restored is live.
+   */
+  public void addRoots(List<Pointer> roots) {
+    roots.add(fp);
   }
 }
 
@@ -1554,11 +2999,11 @@ class HaltKont extends Kont {
   /**
    * Terminates the computation with an exception.
    */
-  public State apply(Value returnValue, ImmutableMap<Addr, Value> store) {
+  public void apply(Value returnValue, Machine m) {
     throw new RuntimeException("terminated: " + returnValue);
   }
 
-  public State handle(ObjectValue exception, FramePointer fp, ImmutableMap<Addr, Value> store) {
+  protected boolean tryHandle(ObjectValue exception, Machine m) {
     throw new RuntimeException("uncaught exception: " + exception);
   }
 
@@ -1585,14 +3030,14 @@ class State {
   /**
    * The "S" component: stores in this machine map address to values.
    */
-  public final ImmutableMap<Addr, Value> store;
+  public final Store store;
 
   /**
    * The "K" component: a stack of exception handlers and return points.
    */
   public final Kont kont;
 
-  public State(Stmt stmt, FramePointer fp, ImmutableMap<Addr, Value> store, Kont kont) {
+  public State(Stmt stmt, FramePointer fp, Store store, Kont kont) {
     this.stmt = stmt;
     this.fp = fp;
     this.store = store;
@@ -1609,15 +3054,362 @@ class State {
   }
 }
 
+/**
+ * The registers of a running OO-CESK machine.
+ * 
+ * Unlike a {@link State}, a machine is updated in place: each statement
+ * overwrites only the components it changes, so the common steps -- skips,
+ * labels, jumps and branches -- allocate nothing. Calls and handlers push
+ * entries on an array-backed stack rather than allocating continuations. A
+ * state is only built when a caller asks for a snapshot.
+ */
+final class Machine {
+
+  /**
+   * The current statement, or null once the machine has halted.
+   */
+  Stmt stmt;
+
+  FramePointer fp;
+
+  Store store;
+
+  /**
+   * The top of the continuation, pushed since it was last captured.
+   */
+  final KontStack stack = new KontStack();
+
+  /**
+   * The continuation beneath the stack.
+   */
+  Kont kont;
+
+  public Machine(Stmt stmt, FramePointer fp, Store store, Kont kont) {
+    this.stmt = stmt;
+    this.fp = fp;
+    this.store = store;
+    this.kont = kont;
+  }
+
+  public Machine(State state) {
+    this(state.stmt, state.fp, state.store, state.kont);
+  }
+
+  /**
+   * Executes a single statement.
+   * 
+   * @return false if the machine has halted
+   */
+  public boolean step() {
+    if (stmt == null)
+      return false;
+    stmt.exec(this);
+    return true;
+  }
+
+  /**
+   * Runs until termination, collecting garbage with the given collector.
+   * 
+   * @param collector
+   *          the garbage collector, or null to never collect
+   */
+  public void run(Collector collector) {
+    while (stmt != null) {
+      if (collector != null)
+        collector.maybeCollect(this);
+      stmt.exec(this);
+    }
+  }
+
+  /**
+   * Returns the current state of the machine as an immutable state.
+   * 
+   * The snapshot shares the store with the machine, so it only remains valid
+   * after further steps if the store is persistent.
+   */
+  public State snapshot() {
+    return new State(stmt, fp, store, kont());
+  }
+
+  /**
+   * Returns the whole continuation of the machine, capturing its stack.
+   */
+  public Kont kont() {
+    if (!stack.isEmpty())
+      kont = stack.capture(kont);
+    return kont;
+  }
+}
+
+/**
+ * A tracing garbage collector for the store.
+ * 
+ * The roots of a state are its frame pointer and the frame pointer of every
+ * return point on its continuation. Records reachable from the roots through
+ * object values survive; every other record -- popped frames and unreachable
+ * objects -- is dropped.
+ */
+class Collector {
+
+  /**
+   * The default store size at which to collect.
+   */
+  public static final int DEFAULT_THRESHOLD = 1 << 16;
+
+  /* The store size at which the next collection happens. */
+  private int threshold;
+
+  private int collections;
+
+  private long reclaimed;
+
+  /**
+   * Creates a collector.
+   * 
+   * @param threshold
+   *          the number of records in the store at which to collect
+   */
+  public Collector(int threshold) {
+    this.threshold = threshold;
+  }
+
+  /**
+   * Collects the store of a state if it has reached the threshold.
+   * 
+   * @param state
+   *          the current state
+   * @return the state with a collected store, or the same state
+   */
+  public State maybeCollect(State state) {
+    if (state.store.size() < threshold)
+      return state;
+    return collect(state);
+  }
+
+  /**
+   * Collects the store of a running machine if it has reached the threshold.
+   * 
+   * @param m
+   *          the machine whose store to collect
+   */
+  public void maybeCollect(Machine m) {
+    if (m.store.size() >= threshold) {
+      List<Pointer> roots = roots(m.fp, m.kont);
+      m.stack.addRoots(roots);
+      m.store = collect(m.store, roots);
+    }
+  }
+
+  /**
+   * Collects the store of a state.
+   * 
+   * @param state
+   *          the current state
+   * @return an equivalent state whose store holds only reachable records
+   */
+  public State collect(State state) {
+    Store store_ = collect(state.store, roots(state.fp, state.kont));
+    return new State(state.stmt, state.fp, store_, state.kont);
+  }
+
+  private List<Pointer> roots(FramePointer fp, Kont kont) {
+    List<Pointer> roots = new ArrayList<Pointer>();
+    roots.add(fp);
+    for (Kont k = kont; k != null; k = k.next)
+      k.addRoots(roots);
+    return roots;
+  }
+
+  /**
+   * Checks whether a store has reached the collection threshold.
+   */
+  public boolean isDue(Store store) {
+    return store.size() >= threshold;
+  }
+
+  /**
+   * Collects a store, given its roots directly.
+   * 
+   * @param store
+   *          the store to collect
+   * @param roots
+   *          the pointers held outside the store; the list is consumed
+   * @return a store holding only the records reachable from the roots
+   */
+  public Store collect(Store store, List<Pointer> roots) {
+    List<Pointer> worklist = roots;
+
+    // Trace through object values:
+    Set<Pointer> live = new HashSet<Pointer>();
+    while (!worklist.isEmpty()) {
+      Pointer p = worklist.remove(worklist.size() - 1);
+      if (!live.add(p))
+        continue;
+      Value[] record = store.record(p);
+      if (record == null)
+        continue;
+      for (Value v : record) {
+        if (v instanceof ObjectValue)
+          worklist.add(((ObjectValue) v).pointer);
+      }
+    }
+    // Sweep everything else:
+    int before = store.size();
+    Store store_ = store.retain(live);
+    int after = store_.size();
+
+    collections++;
+    reclaimed += before - after;
+
+    // Leave headroom so that a mostly live store is not collected every step:
+    threshold = Math.max(threshold, 2 * after);
+
+    return store_;
+  }
+
+  /**
+   * Returns the number of collections so far.
+   */
+  public int collections() {
+    return collections;
+  }
+
+  /**
+   * Returns the total number of records reclaimed so far.
+   */
+  public long reclaimed() {
+    return reclaimed;
+  }
+}
+
 class OOCESK {
 
   /**
-   * Executes the main method in the supplied class.
+   * Executes the main method in the supplied class with a mutable store.
    * 
    * @param mainClass
    *          the class with a main method
    */
   public static void execute(ClassDef mainClass) {
+    execute(mainClass, new MutableStore());
+  }
+
+  /**
+   * Executes the main method in the supplied class, starting from the given
+   * store.
+   * 
+   * Pass {@link Store#empty()} when the intermediate states must remain valid
+   * snapshots, or a fresh {@link MutableStore} for the fastest concrete run.
+   * 
+   * @param mainClass
+   *          the class with a main method
+   * @param store0
+   *          the initial store
+   */
+  public static void execute(ClassDef mainClass, Store store0) {
+    execute(mainClass, store0, new Collector(Collector.DEFAULT_THRESHOLD));
+  }
+
+  /**
+   * Executes the main method in the supplied class, starting from the given
+   * store and collecting garbage with the given collector.
+   * 
+   * Method bodies are compiled to closures on their first call.
+   * 
+   * @param mainClass
+   *          the class with a main method
+   * @param store0
+   *          the initial store
+   * @param collector
+   *          the garbage collector, or null to never collect
+   */
+  public static void execute(ClassDef mainClass, Store store0, Collector collector) {
+    Machine m = new Machine(initialState(mainClass, store0, true));
+
+    // Run until termination:
+    m.run(collector);
+  }
+
+  /**
+   * Executes the main method in the supplied class by interpreting the syntax
+   * tree directly, without compiling it.
+   * 
+   * @param mainClass
+   *          the class with a main method
+   * @param store0
+   *          the initial store
+   * @param collector
+   *          the garbage collector, or null to never collect
+   */
+  public static void interpret(ClassDef mainClass, Store store0, Collector collector) {
+    Machine m = new Machine(initialState(mainClass, store0, false));
+
+    // Run until termination:
+    m.run(collector);
+  }
+
+  /**
+   * Executes the main method in the supplied class as linear register code.
+   * 
+   * Frames are kept outside the store, which holds only objects.
+   * 
+   * @param mainClass
+   *          the class with a main method
+   * @param store0
+   *          the initial store
+   * @param collector
+   *          the garbage collector, or null to never collect
+   */
+  public static void executeLinear(ClassDef mainClass, Store store0, Collector collector) {
+    LinearInterpreter.execute(mainClass, store0, collector);
+  }
+
+  /**
+   * Executes the main method in the supplied class in direct style, with calls
+   * and returns on the Java stack.
+   * 
+   * @param mainClass
+   *          the class with a main method
+   * @param store0
+   *          the initial store
+   * @param collector
+   *          the garbage collector, or null to never collect
+   * @param maxDepth
+   *          the number of activations to keep on the Java stack; deeper
+   *          calls run on the machine
+   */
+  public static void executeDirect(ClassDef mainClass, Store store0, Collector collector,
+      int maxDepth) {
+    DirectInterpreter.execute(mainClass, store0, collector, maxDepth);
+  }
+
+  /**
+   * Builds the state which begins executing the main method in the supplied
+   * class.
+   * 
+   * @param mainClass
+   *          the class with a main method
+   * @param store0
+   *          the initial store
+   * @return the initial state
+   */
+  static State initialState(ClassDef mainClass, Store store0) {
+    return initialState(mainClass, store0, false);
+  }
+
+  /**
+   * Builds the state which begins executing the main method in the supplied
+   * class, either in its compiled form or as a syntax tree.
+   * 
+   * @param mainClass
+   *          the class with a main method
+   * @param store0
+   *          the initial store
+   * @param compiled
+   *          whether to start in the compiled body of main
+   * @return the initial state
+   */
+  static State initialState(ClassDef mainClass, Store store0, boolean compiled) {
     // Grab the main method:
     MethodDef mainMethod = mainClass.lookupMethod("main");
 
@@ -1625,28 +3417,24 @@ class OOCESK {
     ObjectPointer op = new ObjectPointer();
 
     // Construct an object value for mainClass:
-    ObjectValue obj = new ObjectValue(mainClass.name, op);
+    ObjectValue obj = new ObjectValue(mainClass, mainClass.fieldLayout(), op);
 
     // Allocate an initial frame pointer:
     FramePointer fp0 = new FramePointer();
 
-    // Create an initial store:
-    ImmutableMap<Addr, Value> store0 =
-      new ImmutableSortedMap.Builder<Addr, Value>(Addr.ordering).build();
+    // Allocate the initial frame, with the object at register $this:
+    Value[] frame0 = new Value[mainMethod.frameSize];
+    frame0[FrameLayout.THIS_SLOT] = obj;
 
-    // Insert the initial object at register $this:
-    store0 = Store.extend(store0, fp0.offset("this"), obj);
+    // Allocate the object's fields and the frame:
+    store0 = store0.batch().allocObject(obj).alloc(fp0, frame0).publish();
 
     // Grab the halt continuation:
     Kont halt = HaltKont.HALT;
 
     // Synthesize the initial state:
-    State state = new State(mainMethod.body, fp0, store0, halt);
-
-    // Run until termination:
-    while (state != null) {
-      state = state.next();
-    }
+    Stmt body = compiled ? mainMethod.code() : mainMethod.body;
+    return new State(body, fp0, store0, halt);
   }
 
   public static void main(String[] args) {
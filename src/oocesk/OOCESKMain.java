@@ -5,6 +5,8 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
+import oocesk.JvmBackend.CompileException;
+import oocesk.Linker.LinkException;
 import oocesk.Parser.ParseException;
 
 public class OOCESKMain {
@@ -16,6 +18,14 @@ public class OOCESKMain {
   public int realMain(String[] args) {
     List<File> files = new ArrayList<File>();
     boolean verbose = false;
+    boolean time = false;
+    String storeKind = "mutable";
+    int gcThreshold = Collector.DEFAULT_THRESHOLD;
+    boolean interpret = false;
+    boolean jvm = false;
+    boolean linear = false;
+    boolean direct = false;
+    int maxDepth = DirectInterpreter.DEFAULT_MAX_DEPTH;
     for (int i = 0; i < args.length;) {
       String arg = args[i++];
       if ("-h".equals(arg) || "--help".equals(arg)) {
@@ -23,6 +33,42 @@ public class OOCESKMain {
         return 0;
       } else if ("-v".equals(arg) || "--verbose".equals(arg)) {
         verbose = true;
+      } else if ("-t".equals(arg) || "--time".equals(arg)) {
+        time = true;
+      } else if ("-p".equals(arg) || "--persistent".equals(arg)) {
+        storeKind = "persistent";
+      } else if ("--interpret".equals(arg)) {
+        interpret = true;
+      } else if ("--jvm".equals(arg)) {
+        jvm = true;
+      } else if ("--linear".equals(arg)) {
+        linear = true;
+      } else if ("--direct".equals(arg)) {
+        direct = true;
+      } else if ("--store".equals(arg) && i < args.length) {
+        storeKind = args[i++];
+      } else if ("--gc-threshold".equals(arg) && i < args.length) {
+        try {
+          gcThreshold = Integer.parseInt(args[i++]);
+        } catch (NumberFormatException e) {
+          gcThreshold = -1;
+        }
+        if (gcThreshold < 0) {
+          error("Invalid --gc-threshold: " + args[i - 1]);
+          printUsage();
+          return 1;
+        }
+      } else if ("--max-depth".equals(arg) && i < args.length) {
+        try {
+          maxDepth = Integer.parseInt(args[i++]);
+        } catch (NumberFormatException e) {
+          maxDepth = -1;
+        }
+        if (maxDepth < 0) {
+          error("Invalid --max-depth: " + args[i - 1]);
+          printUsage();
+          return 1;
+        }
       } else {
         File f = new File(arg);
         if (!f.exists()) {
@@ -35,6 +81,14 @@ public class OOCESKMain {
       }
     }
 
+    // Fail if the store is unknown
+    Store store0 = newStore(storeKind);
+    if (store0 == null) {
+      error("Unknown store: " + storeKind);
+      printUsage();
+      return 1;
+    }
+
     // Fail if no files are given
     if (files.isEmpty()) {
       error("No files given");
@@ -42,20 +96,13 @@ public class OOCESKMain {
       return 1;
     }
 
-    // Parse all the files and try to find a class with a main method
-    ClassDef mainClass = null;
+    // Parse all the files
+    List<ClassDef> classes = new ArrayList<ClassDef>();
     for (File f : files) {
       try {
         Parser p = Parser.newInstance(f);
         List<ClassDef> cds = p.program();
-        if (mainClass == null) {
-          for (ClassDef cd : cds) {
-            MethodDef md = cd.lookupMethod("main");
-            if (md != null) {
-              mainClass = cd;
-            }
-          }
-        }
+        classes.addAll(cds);
       } catch (IOException e) {
         handle(e, verbose);
       } catch (ParseException e) {
@@ -63,18 +110,82 @@ public class OOCESKMain {
       }
     }
 
+    // Load the classes together, failing on missing parents or methods
+    Program program;
+    try {
+      program = Program.load(classes);
+    } catch (LinkException e) {
+      handle(e, verbose);
+      return 1;
+    }
+
+    // Find a class with a main method, which it may inherit
+    ClassDef mainClass = null;
+    for (ClassDef cd : program.classes()) {
+      if (cd.lookupMethod("main") != null) {
+        mainClass = cd;
+        break;
+      }
+    }
+
     // Fail if we can't find a main method
     if (mainClass == null) {
       error("Couldn't find class with main method");
       return 1;
     }
 
+    // Compile to JVM classes if asked, falling back to the machine
+    long start = System.nanoTime();
+    if (jvm) {
+      JvmBackend backend = null;
+      try {
+        backend = JvmBackend.compile(program.classes());
+      } catch (CompileException e) {
+        error("Can't compile to JVM classes, interpreting instead: " + e.getMessage());
+      }
+      if (backend != null) {
+        backend.run(mainClass);
+        if (time)
+          printTime(start);
+        return 0;
+      }
+    }
+
     // Execute the main method
-    OOCESK.execute(mainClass);
+    Collector collector = new Collector(gcThreshold);
+    if (interpret)
+      OOCESK.interpret(mainClass, store0, collector);
+    else if (linear)
+      OOCESK.executeLinear(mainClass, store0, collector);
+    else if (direct)
+      OOCESK.executeDirect(mainClass, store0, collector, maxDepth);
+    else
+      OOCESK.execute(mainClass, store0, collector);
+    if (time)
+      printTime(start);
+    if (verbose) {
+      error("gc: " + collector.collections() + " collections, " + collector.reclaimed()
+          + " records reclaimed");
+      error("dispatch: " + InlineCache.Stats.of(program.classes()));
+      error("fold: " + program.foldedNodes() + " nodes folded");
+    }
 
     return 0;
   }
 
+  private Store newStore(String kind) {
+    if ("mutable".equals(kind)) {
+      return new MutableStore();
+    } else if ("persistent".equals(kind)) {
+      return Store.empty();
+    } else if ("sorted".equals(kind)) {
+      return MutableStore.sorted();
+    } else if ("offheap".equals(kind)) {
+      return new OffHeapStore();
+    }
+    return null;
+  }
+
   private void handle(Throwable e, boolean verbose) {
     error(e.getMessage());
     if (verbose) {
@@ -82,6 +193,10 @@ public class OOCESKMain {
     }
   }
 
+  private void printTime(long start) {
+    error("time: " + (System.nanoTime() - start) / 1000000 + " ms");
+  }
+
   private void error(String msg) {
     System.err.println(msg);
   }
@@ -91,6 +206,20 @@ public class OOCESKMain {
     error("where options include:");
     error(" -h || --help      print this message");
     error(" -v || --verbose   print verbose errors");
+    error(" -t || --time      print how long the program took to run");
+    error(" -p || --persistent  same as --store persistent");
+    error(" --store <kind>      the store to run with: mutable (default),");
+    error("                     persistent, sorted or offheap");
+    error(" --gc-threshold <n>  collect garbage when the store holds n records");
+    error(" --interpret         walk the syntax tree instead of compiling it");
+    error(" --jvm               compile the program to JVM classes and run those;");
+    error("                     recursion runs on a " + (JvmBackend.STACK_SIZE >> 20)
+        + " MB Java stack, and fails past it");
+    error(" --linear            lower methods to linear register code and run that");
+    error(" --direct            run calls and returns on the Java stack");
+    error(" --max-depth <n>     the deepest --direct recursion before falling back to");
+    error("                     the machine (default " + DirectInterpreter.DEFAULT_MAX_DEPTH
+        + ")");
     error("and files are .oocesk files");
   }
 }
@@ -0,0 +1,396 @@
+package oocesk;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * A mutable store which keeps its records outside the Java heap.
+ *
+ * Records live in one direct byte buffer. Each record is a header followed by
+ * its slots:
+ *
+ * <pre>
+ * record ::= int slotCount, int classIndex, slot ...
+ * slot   ::= byte tag, long payload
+ * </pre>
+ *
+ * Integers, booleans, null and void are stored inline as tagged primitives;
+ * objects are stored as the 64-bit value of their pointer, and their class is
+ * recovered from the header of the object's own record. Frames have a class
+ * index of -1.
+ *
+ * The index from pointer values to record offsets is a table of primitive
+ * arrays, so the store creates no per-entry objects on the heap. Values are
+ * decoded on every lookup, which allocates an ObjectValue for object slots.
+ *
+ * Allocating a record for a pointer that already has one, as a tail call does
+ * with its frame, overwrites the old record in place if it is large enough.
+ * Otherwise the old record's bytes are dead; once they make up half the
+ * buffer, the buffer is compacted rather than grown.
+ */
+final class OffHeapStore extends Store {
+
+  /* Slot tags. */
+  private static final byte UNBOUND = 0;
+  private static final byte INT = 1;
+  private static final byte TRUE = 2;
+  private static final byte FALSE = 3;
+  private static final byte NULL = 4;
+  private static final byte VOID = 5;
+  private static final byte OBJECT = 6;
+
+  private static final int HEADER_SIZE = 8;
+
+  private static final int SLOT_SIZE = 9;
+
+  private static final int FRAME_CLASS = -1;
+
+  private ByteBuffer buffer;
+
+  /* The offset of the next free byte in the buffer. */
+  private int top;
+
+  /* The bytes below top which no record uses. */
+  private int dead;
+
+  private LongIntMap index;
+
+  /* The classes of objects in the store, by class index. */
+  private final List<ClassDef> classes = new ArrayList<ClassDef>();
+
+  private final List<FieldLayout> layouts = new ArrayList<FieldLayout>();
+
+  private final IdentityHashMap<ClassDef, Integer> classIndices =
+      new IdentityHashMap<ClassDef, Integer>();
+
+  /* The most recently accessed record. */
+  private Pointer lastPointer;
+
+  private int lastOffset;
+
+  /**
+   * Creates an empty off-heap store.
+   *
+   * @param capacity
+   *          the initial size of the buffer in bytes; it grows as needed
+   */
+  public OffHeapStore(int capacity) {
+    this.buffer = ByteBuffer.allocateDirect(Math.max(capacity, HEADER_SIZE));
+    this.index = new LongIntMap(1024);
+  }
+
+  /**
+   * Creates an empty off-heap store with a one-megabyte initial buffer.
+   */
+  public OffHeapStore() {
+    this(1 << 20);
+  }
+
+  private int offset(Pointer pointer) {
+    if (pointer != lastPointer) {
+      int off = index.get(pointer.value);
+      if (off < 0)
+        throw new RuntimeException("no record for pointer: " + pointer.value);
+      lastOffset = off;
+      lastPointer = pointer;
+    }
+    return lastOffset;
+  }
+
+  private static int slotOffset(int recordOffset, int slot) {
+    return recordOffset + HEADER_SIZE + slot * SLOT_SIZE;
+  }
+
+  public Value lookup(Pointer pointer, int slot) {
+    return decode(slotOffset(offset(pointer), slot));
+  }
+
+  public Store bind(Pointer pointer, int slot, Value value) {
+    encode(slotOffset(offset(pointer), slot), value);
+    return this;
+  }
+
+  public Store alloc(Pointer pointer, Value[] record) {
+    if (!(pointer instanceof FramePointer))
+      throw new RuntimeException("objects must be allocated with allocObject");
+    int off = allocRecord(pointer, record.length, FRAME_CLASS);
+    for (int slot = 0; slot < record.length; ++slot)
+      encode(slotOffset(off, slot), record[slot]);
+    return this;
+  }
+
+  public Store allocObject(ObjectValue object) {
+    allocRecord(object.pointer, object.layout.size(), classIndex(object));
+    return this;
+  }
+
+  private int allocRecord(Pointer pointer, int slotCount, int classIndex) {
+    int size = HEADER_SIZE + slotCount * SLOT_SIZE;
+    int off = index.get(pointer.value);
+    if (off >= 0) {
+      int oldSize = HEADER_SIZE + buffer.getInt(off) * SLOT_SIZE;
+      if (oldSize >= size) {
+        dead += oldSize - size;
+      } else {
+        dead += oldSize;
+        off = -1;
+      }
+    }
+    if (off < 0) {
+      ensureCapacity(size);
+      off = top;
+      top += size;
+    }
+    buffer.putInt(off, slotCount);
+    buffer.putInt(off + 4, classIndex);
+    for (int slot = 0; slot < slotCount; ++slot)
+      buffer.put(slotOffset(off, slot), UNBOUND);
+    index.put(pointer.value, off);
+    lastPointer = pointer;
+    lastOffset = off;
+    return off;
+  }
+
+  private void ensureCapacity(int size) {
+    if (top + size <= buffer.capacity())
+      return;
+    if (dead > 0 && dead >= top / 2) {
+      compact(livePointerValues());
+      if (top + size <= buffer.capacity())
+        return;
+    }
+    long capacity = Math.max(2L * buffer.capacity(), (long) top + size);
+    if (capacity > Integer.MAX_VALUE)
+      throw new RuntimeException("off-heap store is full");
+    ByteBuffer grown = ByteBuffer.allocateDirect((int) capacity);
+    ByteBuffer old = buffer.duplicate();
+    old.position(0);
+    old.limit(top);
+    grown.put(old);
+    buffer = grown;
+  }
+
+  private int classIndex(ObjectValue object) {
+    Integer i = classIndices.get(object.classs);
+    if (i == null) {
+      i = classes.size();
+      classes.add(object.classs);
+      layouts.add(object.layout);
+      classIndices.put(object.classs, i);
+    }
+    return i;
+  }
+
+  private void encode(int off, Value value) {
+    if (value == null) {
+      buffer.put(off, UNBOUND);
+    } else if (value instanceof IntValue) {
+      buffer.put(off, INT);
+      buffer.putLong(off + 1, ((IntValue) value).value);
+    } else if (value == TrueValue.VALUE) {
+      buffer.put(off, TRUE);
+    } else if (value == FalseValue.VALUE) {
+      buffer.put(off, FALSE);
+    } else if (value == NullValue.VALUE) {
+      buffer.put(off, NULL);
+    } else if (value == VoidValue.VALUE) {
+      buffer.put(off, VOID);
+    } else if (value instanceof ObjectValue) {
+      buffer.put(off, OBJECT);
+      buffer.putLong(off + 1, ((ObjectValue) value).pointer.value);
+    } else {
+      throw new RuntimeException("cannot store value off-heap: " + value);
+    }
+  }
+
+  private Value decode(int off) {
+    switch (buffer.get(off)) {
+    case UNBOUND:
+      return null;
+    case INT:
+      return IntValue.of((int) buffer.getLong(off + 1));
+    case TRUE:
+      return TrueValue.VALUE;
+    case FALSE:
+      return FalseValue.VALUE;
+    case NULL:
+      return NullValue.VALUE;
+    case VOID:
+      return VoidValue.VALUE;
+    case OBJECT:
+      long value = buffer.getLong(off + 1);
+      int target = index.get(value);
+      if (target < 0)
+        throw new RuntimeException("no record for object pointer: " + value);
+      int classIndex = buffer.getInt(target + 4);
+      return new ObjectValue(classes.get(classIndex), layouts.get(classIndex),
+          new ObjectPointer(value));
+    default:
+      throw new RuntimeException("corrupt off-heap slot at " + off);
+    }
+  }
+
+  Value[] record(Pointer pointer) {
+    int off = index.get(pointer.value);
+    if (off < 0)
+      return null;
+    int slotCount = buffer.getInt(off);
+    Value[] record = new Value[slotCount];
+    for (int slot = 0; slot < slotCount; ++slot)
+      record[slot] = decode(slotOffset(off, slot));
+    return record;
+  }
+
+  public Store retain(Collection<Pointer> live) {
+    long[] values = new long[live.size()];
+    int n = 0;
+    for (Pointer pointer : live)
+      values[n++] = pointer.value;
+    compact(values);
+    return this;
+  }
+
+  /* Returns the values of every pointer with a record. */
+  private long[] livePointerValues() {
+    long[] values = new long[index.size()];
+    int n = 0;
+    for (long value : index.keys) {
+      if (value != LongIntMap.EMPTY)
+        values[n++] = value;
+    }
+    return values;
+  }
+
+  /**
+   * Copies the records of the given pointer values into a fresh buffer,
+   * dropping every other record.
+   */
+  private void compact(long[] live) {
+    ByteBuffer old = buffer;
+    LongIntMap oldIndex = index;
+    buffer = ByteBuffer.allocateDirect(Math.max(old.capacity() / 2, HEADER_SIZE));
+    index = new LongIntMap(Math.max(2 * live.length, 1024));
+    top = 0;
+    dead = 0;
+    for (long value : live) {
+      int from = oldIndex.get(value);
+      if (from < 0)
+        continue;
+      int size = HEADER_SIZE + old.getInt(from) * SLOT_SIZE;
+      ensureCapacity(size);
+      ByteBuffer src = old.duplicate();
+      src.limit(from + size);
+      src.position(from);
+      ByteBuffer dst = buffer.duplicate();
+      dst.position(top);
+      dst.put(src);
+      index.put(value, top);
+      top += size;
+    }
+    lastPointer = null;
+  }
+
+  /**
+   * Returns the number of bytes of the buffer in use, dead ones included.
+   */
+  int bytesInUse() {
+    return top;
+  }
+
+  public Collection<Pointer> pointers() {
+    List<Pointer> pointers = new ArrayList<Pointer>(index.size());
+    for (int i = 0; i < index.keys.length; ++i) {
+      long value = index.keys[i];
+      if (value == LongIntMap.EMPTY)
+        continue;
+      if (buffer.getInt(index.values[i] + 4) == FRAME_CLASS)
+        pointers.add(new FramePointer(value));
+      else
+        pointers.add(new ObjectPointer(value));
+    }
+    return pointers;
+  }
+
+  public int size() {
+    return index.size();
+  }
+
+  /**
+   * An open-addressing hash table from pointer values to record offsets, held
+   * in primitive arrays.
+   */
+  private static final class LongIntMap {
+
+    /* Pointer values start at one, so zero marks an empty entry. */
+    static final long EMPTY = 0;
+
+    long[] keys;
+
+    int[] values;
+
+    private int size;
+
+    LongIntMap(int capacity) {
+      int n = Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1;
+      keys = new long[n];
+      values = new int[n];
+    }
+
+    int size() {
+      return size;
+    }
+
+    private static int mix(long key) {
+      long h = key * 0x9E3779B97F4A7C15L;
+      return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Returns the offset for a key, or -1 if it is absent.
+     */
+    int get(long key) {
+      int mask = keys.length - 1;
+      for (int i = mix(key) & mask;; i = (i + 1) & mask) {
+        long k = keys[i];
+        if (k == key)
+          return values[i];
+        if (k == EMPTY)
+          return -1;
+      }
+    }
+
+    void put(long key, int value) {
+      if (2 * (size + 1) > keys.length)
+        grow();
+      int mask = keys.length - 1;
+      for (int i = mix(key) & mask;; i = (i + 1) & mask) {
+        long k = keys[i];
+        if (k == key) {
+          values[i] = value;
+          return;
+        }
+        if (k == EMPTY) {
+          keys[i] = key;
+          values[i] = value;
+          size++;
+          return;
+        }
+      }
+    }
+
+    private void grow() {
+      long[] oldKeys = keys;
+      int[] oldValues = values;
+      keys = new long[2 * oldKeys.length];
+      values = new int[2 * oldValues.length];
+      size = 0;
+      for (int i = 0; i < oldKeys.length; ++i) {
+        if (oldKeys[i] != EMPTY)
+          put(oldKeys[i], oldValues[i]);
+      }
+    }
+  }
+}
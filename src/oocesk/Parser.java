@@ -83,7 +83,7 @@ class Parser {
       if (def == null) {
         break;
       }
-      res.addMethod(def.name, def.formals, def.body);
+      res.addMethod(def);
     }
     shift("}");
     return res;
@@ -200,9 +200,7 @@ class Parser {
           shift(";");
           return new AssignAExpStmt(stmt(), lhs, rhs);
         } else {
-          Stmt res = cexp(lhs);
-          shift(";");
-          return res;
+          return cexp(lhs);
         }
       }
     }
@@ -230,11 +228,18 @@ class Parser {
     return null;
   }
 
+  /*
+   * cexp ::= ... ;
+   * 
+   * The terminating semicolon is consumed here, before the rest of the body is
+   * parsed.
+   */
   private Stmt cexp(String lhs) throws ParseException {
 
     // new class-name
     if (haveToken("new")) {
       String className = idOrLabel();
+      shift(";");
       return new NewStmt(stmt(), lhs, className);
     }
 
@@ -246,6 +251,7 @@ class Parser {
         shift(".");
         String methodName = idOrLabel();
         AExp[] args = aexps();
+        shift(";");
         return new InvokeSuperStmt(stmt(), lhs, methodName, args);
       }
 
@@ -264,6 +270,7 @@ class Parser {
           methodName = idOrLabel();
         }
         AExp[] args = aexps();
+        shift(";");
         return new InvokeStmt(stmt(), lhs, object, methodName, args);
       }
     }
@@ -0,0 +1,91 @@
+package oocesk;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import oocesk.Linker.LinkException;
+
+/**
+ * A loaded program and the table of its classes.
+ *
+ * The table is filled once, when the program is loaded, and never changes
+ * afterwards, so it is read without locking. Every class name the program
+ * mentions is resolved against its own table, and every label against the
+ * labels of the enclosing method, so programs loaded into the same JVM never
+ * see each other's classes or labels, and any number of them may run at once.
+ */
+final class Program {
+
+  private final List<ClassDef> classes;
+
+  private final Map<String, ClassDef> classTable;
+
+  private int folded;
+
+  /**
+   * Loads the parsed classes of a program, resolving the parent of every class
+   * and every class and label named in a method body. Classes which share a
+   * name are left for {@link Linker#link(Program)} to report.
+   *
+   * @param classes
+   *          the classes of every file of the program
+   */
+  Program(Collection<ClassDef> classes) {
+    this.classes = Collections.unmodifiableList(new ArrayList<ClassDef>(classes));
+
+    Map<String, ClassDef> classTable = new HashMap<String, ClassDef>();
+    for (ClassDef c : classes)
+      classTable.put(c.name, c);
+    this.classTable = Collections.unmodifiableMap(classTable);
+
+    for (ClassDef c : classes)
+      c.resolve(this);
+  }
+
+  /**
+   * Loads and links the parsed classes of a program, and folds the constant
+   * expressions in their methods.
+   *
+   * @param classes
+   *          the classes of every file of the program
+   * @return the linked program
+   * @throws LinkException
+   *           if the classes don't link
+   */
+  static Program load(Collection<ClassDef> classes) throws LinkException {
+    Program program = new Program(classes);
+    Linker.link(program);
+    program.folded = Folder.fold(program);
+    return program;
+  }
+
+  /**
+   * Returns the classes of this program, in the order they were parsed.
+   */
+  List<ClassDef> classes() {
+    return classes;
+  }
+
+  /**
+   * Returns the number of expressions and branches folded when this program
+   * was loaded.
+   */
+  int foldedNodes() {
+    return folded;
+  }
+
+  /**
+   * Looks up a class by name.
+   *
+   * @param className
+   *          the name of the class to look up
+   * @return the class with the given name, or null if there is none
+   */
+  ClassDef classNamed(String className) {
+    return classTable.get(className);
+  }
+}
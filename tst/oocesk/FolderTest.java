@@ -0,0 +1,96 @@
+package oocesk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+import oocesk.Linker.LinkException;
+import oocesk.Parser.ParseException;
+
+import org.junit.Test;
+
+public class FolderTest {
+
+  @Test
+  public void testFoldsArithmetic() throws Exception {
+    Program program = load(
+        "class A extends Object { def main() { print(+(2, *(3, 4)), =(1, 2)); } }");
+    PrintStmt print = (PrintStmt) main(program).body;
+    assertEquals(14, ((IntExp) print.args[0]).value);
+    assertEquals(false, ((BooleanExp) print.args[1]).value);
+    assertEquals(3, program.foldedNodes());
+  }
+
+  @Test
+  public void testKeepsFailingOps() throws Exception {
+    Program program = load("class A extends Object { def main() { $x := +(1, true); } }");
+    AssignAExpStmt assign = (AssignAExpStmt) main(program).body;
+    assertTrue(assign.rhs instanceof AtomicOpExp);
+    assertEquals(0, program.foldedNodes());
+  }
+
+  @Test
+  public void testFoldsInstanceOfThis() throws Exception {
+    Program program = load("class A extends Object { } class B extends A { } "
+        + "class C extends B { def main() { print(instanceof(this, A), instanceof(this, D)); } } "
+        + "class D extends A { } class E extends C { }");
+    PrintStmt print = (PrintStmt) main(program).body;
+    assertEquals(true, ((BooleanExp) print.args[0]).value);
+    assertEquals(false, ((BooleanExp) print.args[1]).value);
+  }
+
+  @Test
+  public void testKeepsInstanceOfUndecided() throws Exception {
+    // The receiver may be a B, or $this may be reassigned:
+    Program program = load("class A extends Object { def main() { print(instanceof(this, B)); } } "
+        + "class B extends A { def f() { $this := 1; print(instanceof(this, A)); } }");
+    assertEquals(0, program.foldedNodes());
+  }
+
+  @Test
+  public void testConstantBranches() throws Exception {
+    String source = "class A extends Object { def main() { "
+        + "if =(1, 1) goto yes; print(0); label yes: print(1); "
+        + "if =(1, 2) goto no; print(2); label no: print(3); } }";
+    Program program = load(source);
+    assertEquals(4, program.foldedNodes());
+    assertEquals("1\n2\n3\n", output(load(source), "closures"));
+    assertEquals("1\n2\n3\n", output(load(source), "linear"));
+    assertEquals("1\n2\n3\n", output(load(source), "interpret"));
+  }
+
+  private String output(Program program, String tier) {
+    ClassDef main = program.classes().get(0);
+    PrintStream out = System.out;
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    System.setOut(new PrintStream(bytes));
+    try {
+      if (tier.equals("closures"))
+        OOCESK.execute(main, new MutableStore(), null);
+      else if (tier.equals("linear"))
+        OOCESK.executeLinear(main, new MutableStore(), null);
+      else
+        OOCESK.interpret(main, new MutableStore(), null);
+    } finally {
+      System.setOut(out);
+    }
+    return bytes.toString();
+  }
+
+  private MethodDef main(Program program) {
+    for (ClassDef c : program.classes()) {
+      MethodDef main = c.lookupMethod("main");
+      if (main != null)
+        return main;
+    }
+    throw new AssertionError("no main method");
+  }
+
+  private Program load(String source) throws ParseException, LinkException {
+    List<ClassDef> classes = new Parser(new Scanner(source)).program();
+    return Program.load(classes);
+  }
+}
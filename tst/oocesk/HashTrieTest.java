@@ -0,0 +1,110 @@
+package oocesk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class HashTrieTest {
+
+  @Test
+  public void testPutGet() {
+    HashTrie<Integer, String> t = HashTrie.empty();
+    for (int i = 0; i < 10000; i++) {
+      t = t.put(i, "v" + i);
+    }
+    assertEquals(10000, t.size());
+    for (int i = 0; i < 10000; i++) {
+      assertEquals("v" + i, t.get(i));
+    }
+    assertNull(t.get(10000));
+  }
+
+  @Test
+  public void testPersistence() {
+    HashTrie<String, String> t1 = HashTrie.<String, String> empty().put("a", "1");
+    HashTrie<String, String> t2 = t1.put("a", "2").put("b", "3");
+    assertEquals("1", t1.get("a"));
+    assertNull(t1.get("b"));
+    assertEquals(1, t1.size());
+    assertEquals("2", t2.get("a"));
+    assertEquals("3", t2.get("b"));
+    assertEquals(2, t2.size());
+  }
+
+  @Test
+  public void testSameBindingIsShared() {
+    HashTrie<String, String> t = HashTrie.<String, String> empty().put("a", "1");
+    assertSame(t, t.put("a", "1"));
+  }
+
+  @Test
+  public void testTransient() {
+    HashTrie<Integer, Integer> base = HashTrie.empty();
+    for (int i = 0; i < 100; i++) {
+      base = base.put(i, i);
+    }
+    HashTrie.Transient<Integer, Integer> t = base.asTransient();
+    for (int i = 0; i < 5000; i++) {
+      t.put(i, -i);
+    }
+    HashTrie<Integer, Integer> result = t.persistent();
+    assertEquals(5000, result.size());
+    for (int i = 0; i < 5000; i++) {
+      assertEquals(Integer.valueOf(-i), result.get(i));
+    }
+    // The original is untouched:
+    assertEquals(100, base.size());
+    for (int i = 0; i < 100; i++) {
+      assertEquals(Integer.valueOf(i), base.get(i));
+    }
+    // Later persistent updates don't disturb the published trie:
+    HashTrie<Integer, Integer> next = result.put(1, 1);
+    assertEquals(Integer.valueOf(-1), result.get(1));
+    assertEquals(Integer.valueOf(1), next.get(1));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testTransientAfterPersistent() {
+    HashTrie.Transient<Integer, Integer> t = HashTrie.<Integer, Integer> empty().asTransient();
+    t.persistent();
+    t.put(1, 1);
+  }
+
+  @Test
+  public void testCollisions() {
+    HashTrie<Collider, Integer> t = HashTrie.empty();
+    for (int i = 0; i < 100; i++) {
+      t = t.put(new Collider(i), i);
+    }
+    assertEquals(100, t.size());
+    for (int i = 0; i < 100; i++) {
+      assertEquals(Integer.valueOf(i), t.get(new Collider(i)));
+    }
+    t = t.put(new Collider(7), -7);
+    assertEquals(100, t.size());
+    assertEquals(Integer.valueOf(-7), t.get(new Collider(7)));
+  }
+
+  /**
+   * A key whose hash only distinguishes it from a few others.
+   */
+  private static final class Collider {
+    final int id;
+
+    Collider(int id) {
+      this.id = id;
+    }
+
+    @Override
+    public int hashCode() {
+      return id % 3;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Collider && ((Collider) o).id == id;
+    }
+  }
+}
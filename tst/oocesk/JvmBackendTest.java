@@ -0,0 +1,77 @@
+package oocesk;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+
+import oocesk.JvmBackend.CompileException;
+import oocesk.Linker.LinkException;
+import oocesk.Parser.ParseException;
+
+import org.junit.Test;
+
+public class JvmBackendTest {
+
+  @Test
+  public void testSameOutputAsMachine() throws ParseException {
+    String[] programs = { "invoke1.oocesk", "fields1.oocesk", "garbage1.oocesk",
+        "throw1.oocesk" };
+    for (String program : programs) {
+      List<ClassDef> classes = load(program);
+      ClassDef main = classes.get(classes.size() - 1);
+      assertEquals(program, output(classes, main, false), output(classes, main, true));
+    }
+  }
+
+  @Test
+  public void testDeepRecursion() throws ParseException {
+    // A million tail calls, then 100000 frames for an exception to unwind:
+    List<ClassDef> classes = load("tail1.oocesk");
+    assertEquals("1000000\n", output(classes, classes.get(0), true));
+    classes = load("throw3.oocesk");
+    assertEquals("0\n", output(classes, classes.get(1), true));
+  }
+
+  @Test(expected = CompileException.class)
+  public void testPathDependentHandlers() throws ParseException, CompileException {
+    // No one exception table fits a throw whose handlers depend on the path:
+    JvmBackend.compile(load("handlers1.oocesk"));
+  }
+
+  @Test(expected = RuntimeException.class)
+  public void testReturnFromMainTerminates() throws ParseException, CompileException {
+    List<ClassDef> classes = load("return1.oocesk");
+    JvmBackend.compile(classes).run(classes.get(0));
+  }
+
+  private String output(List<ClassDef> classes, ClassDef main, boolean jvm) {
+    PrintStream out = System.out;
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    System.setOut(new PrintStream(bytes));
+    try {
+      if (jvm)
+        JvmBackend.compile(classes).run(main);
+      else
+        OOCESK.execute(main);
+    } catch (CompileException e) {
+      throw new RuntimeException(e);
+    } finally {
+      System.setOut(out);
+    }
+    return bytes.toString();
+  }
+
+  private List<ClassDef> load(String fileName) throws ParseException {
+    try {
+      return Program.load(Parser.newInstance(new File("test", fileName)).program()).classes();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } catch (LinkException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -0,0 +1,69 @@
+package oocesk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class KontStackTest {
+
+  private static final int DEPTH = 2 * KontStack.SEGMENT_SIZE + 3;
+
+  @Test
+  public void testCaptureAcrossSegments() {
+    KontStack stack = new KontStack();
+    FramePointer[] fps = push(stack);
+    stack.pushHandler(null, null);
+
+    Kont kont = stack.capture(HaltKont.HALT);
+    assertTrue(stack.isEmpty());
+    assertTrue(kont instanceof HandlerKont);
+    kont = kont.next;
+    for (int i = DEPTH - 1; i >= 0; --i) {
+      assertSame(fps[i], ((AssignKont) kont).fp);
+      assertEquals(i, ((AssignKont) kont).slot);
+      kont = kont.next;
+    }
+    assertSame(HaltKont.HALT, kont);
+  }
+
+  @Test
+  public void testApplyPopsInOrder() {
+    KontStack stack = new KontStack();
+    FramePointer[] fps = push(stack);
+    Store store = new MutableStore();
+    for (FramePointer fp : fps)
+      store = store.alloc(fp, new Value[DEPTH]);
+    Machine m = new Machine(null, new FramePointer(), store, HaltKont.HALT);
+
+    for (int i = DEPTH - 1; i >= 0; --i) {
+      stack.pushHandler(null, null);
+      stack.apply(new IntValue(i), m);
+      assertSame(fps[i], m.fp);
+      assertEquals(i, m.store.lookup(fps[i], i).toInt());
+    }
+    assertTrue(stack.isEmpty());
+  }
+
+  @Test
+  public void testRootsAcrossSegments() {
+    KontStack stack = new KontStack();
+    FramePointer[] fps = push(stack);
+    List<Pointer> roots = new ArrayList<Pointer>();
+    stack.addRoots(roots);
+    assertEquals(DEPTH, roots.size());
+  }
+
+  private FramePointer[] push(KontStack stack) {
+    FramePointer[] fps = new FramePointer[DEPTH];
+    for (int i = 0; i < DEPTH; ++i) {
+      fps[i] = new FramePointer();
+      stack.pushReturn(i, null, fps[i], null);
+    }
+    return fps;
+  }
+}
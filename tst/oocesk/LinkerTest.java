@@ -0,0 +1,126 @@
+package oocesk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import oocesk.Linker.LinkException;
+import oocesk.Parser.ParseException;
+
+import org.junit.Test;
+
+public class LinkerTest {
+
+  @Test
+  public void testVtables() throws Exception {
+    List<ClassDef> classes = parse("dispatch1.oocesk");
+    Map<String, Integer> selectors = Linker.link(new Program(classes));
+    int v = selectors.get("v");
+    int next = selectors.get("next");
+
+    ClassDef s = classes.get(0);
+    ClassDef b = classes.get(2);
+    ClassDef c = classes.get(3);
+    assertSame(s.lookupMethod("v"), b.vtable[v]);
+    assertSame(c.lookupMethod("v"), c.vtable[v]);
+    assertSame(b.lookupMethod("next"), b.vtable[next]);
+    assertNull(s.vtable[next]);
+  }
+
+  @Test
+  public void testDisplays() throws Exception {
+    List<ClassDef> classes = parse("throw1.oocesk");
+    Program.load(classes);
+    ClassDef err = classes.get(0);
+    ClassDef base = classes.get(1);
+    ClassDef foo = classes.get(2);
+    assertTrue(foo.isSubclassOf(base));
+    assertTrue(foo.isSubclassOf(foo));
+    assertFalse(base.isSubclassOf(foo));
+    assertFalse(foo.isSubclassOf(err));
+    assertEquals(2, foo.display().length);
+  }
+
+  @Test
+  public void testSuperResolved() throws Exception {
+    List<ClassDef> classes = parse("throw1.oocesk");
+    Program.load(classes);
+    ClassDef base = classes.get(1);
+    ClassDef foo = classes.get(2);
+    InvokeSuperStmt call = (InvokeSuperStmt) foo.lookupMethod("fail").body;
+    assertSame(base.lookupMethod("fail"), call.target);
+  }
+
+  @Test
+  public void testMissingParent() throws ParseException {
+    assertLinkError("class A extends Nope { }", "class A: no such parent class: Nope");
+  }
+
+  @Test
+  public void testCyclicParents() throws ParseException {
+    assertLinkError("class A extends A { }", "class A: cyclic inheritance");
+  }
+
+  @Test
+  public void testMissingClass() throws ParseException {
+    assertLinkError("class A extends Object { def main() { $x := new Nope; } }",
+        "method A.main: no such class: Nope");
+  }
+
+  @Test
+  public void testDuplicateClass() throws ParseException {
+    assertLinkError("class A extends Object { } class A extends Object { }",
+        "class A: defined more than once");
+  }
+
+  @Test
+  public void testDuplicateLabel() throws ParseException {
+    assertLinkError("class A extends Object { def main() { label l: skip; label l: skip; } }",
+        "method A.main: duplicate label: l");
+  }
+
+  @Test
+  public void testMissingLabel() throws ParseException {
+    assertLinkError("class A extends Object { def f() { label l: skip; } def main() { goto l; } }",
+        "method A.main: no such label: l");
+  }
+
+  @Test
+  public void testMissingMethod() throws ParseException {
+    assertLinkError("class A extends Object { def main() { $x := invoke this.nope(); } }",
+        "method A.main: no such method: nope");
+  }
+
+  @Test
+  public void testMissingSuperMethod() throws ParseException {
+    assertLinkError("class A extends Object { def f() { return 1; } } "
+        + "class B extends Object { def g() { $x := invoke super.f(); } }",
+        "method B.g: no such method in parent class: f");
+  }
+
+  private void assertLinkError(String program, String expected) throws ParseException {
+    List<ClassDef> classes = new Parser(new Scanner(program)).program();
+    try {
+      Program.load(classes);
+      fail("linked: " + program);
+    } catch (LinkException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains(expected));
+    }
+  }
+
+  private List<ClassDef> parse(String fileName) throws ParseException {
+    try {
+      return Parser.newInstance(new File("test", fileName)).program();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
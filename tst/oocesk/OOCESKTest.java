@@ -1,8 +1,17 @@
 package oocesk;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
 
+import oocesk.Linker.LinkException;
 import oocesk.Parser.ParseException;
 
 import org.junit.Test;
@@ -21,15 +30,357 @@ public class OOCESKTest {
     OOCESK.execute(foo);
   }
 
+  @Test
+  public void testPrint2Persistent() throws ParseException {
+    ClassDef foo = getOneClass("print2.oocesk");
+    OOCESK.execute(foo, Store.empty());
+  }
+
   @Test
   public void testReturn1() throws ParseException {
     ClassDef foo = getOneClass("return1.oocesk");
     OOCESK.execute(foo);
   }
 
+  @Test
+  public void testInvoke1() throws ParseException {
+    ClassDef foo = getOneClass("invoke1.oocesk");
+    OOCESK.execute(foo);
+    OOCESK.execute(foo, Store.empty());
+    OOCESK.execute(foo, new OffHeapStore());
+  }
+
+  @Test
+  public void testIntValueCache() {
+    assertSame(IntValue.of(7), IntValue.of(7));
+    assertSame(IntValue.of(IntValue.CACHE_LOW), IntValue.of(IntValue.CACHE_LOW));
+    assertFalse(IntValue.of(IntValue.CACHE_HIGH + 1) == IntValue.of(IntValue.CACHE_HIGH + 1));
+    assertEquals(IntValue.CACHE_HIGH + 1, IntValue.of(IntValue.CACHE_HIGH + 1).toInt());
+    assertEquals(Integer.MIN_VALUE, IntValue.of(Integer.MIN_VALUE).toInt());
+    assertEquals(Integer.MAX_VALUE, IntValue.of(Integer.MAX_VALUE).toInt());
+
+    // The range asked for is clamped, not overflowed:
+    assertEquals(1152, IntValue.newCache(-128, 1023).length);
+    assertEquals(0, IntValue.newCache(5, 4).length);
+    IntValue[] cache = IntValue.newCache(Integer.MIN_VALUE, Integer.MAX_VALUE);
+    assertEquals(IntValue.MAX_CACHE_SIZE, cache.length);
+    assertEquals(Integer.MIN_VALUE, cache[0].toInt());
+    assertEquals(1, IntValue.newCache(Integer.MAX_VALUE, Integer.MAX_VALUE).length);
+
+    // 2 + 3 * (10 - 4), with no intermediate values:
+    AExp sub = new AtomicOpExp(PrimOp.SUB, new AExp[] { new IntExp(10), new IntExp(4) });
+    AExp mul = new AtomicOpExp(PrimOp.MUL, new AExp[] { new IntExp(3), sub });
+    AExp add = new AtomicOpExp(PrimOp.ADD, new AExp[] { new IntExp(2), mul });
+    assertEquals(20, add.evalInt(null, null));
+    assertSame(IntValue.of(20), add.eval(null, null));
+  }
+
+  @Test
+  public void testFields1() throws ParseException {
+    ClassDef foo = load("fields1.oocesk").get(1);
+    assertEquals(0, foo.fieldLayout().slot("x"));
+    assertEquals(1, foo.fieldLayout().slot("y"));
+    OOCESK.execute(foo);
+    OOCESK.execute(foo, Store.empty());
+    OOCESK.execute(foo, new OffHeapStore());
+  }
+
+  @Test
+  public void testCollector() throws ParseException {
+    ClassDef foo = getOneClass("garbage1.oocesk");
+    Collector collector = new Collector(4);
+    OOCESK.execute(foo, Store.empty(), collector);
+    assertTrue(collector.collections() > 0);
+    assertTrue(collector.reclaimed() > 0);
+  }
+
+  @Test
+  public void testAddrInterning() {
+    FramePointer fp = new FramePointer();
+    ObjectPointer op = new ObjectPointer();
+    assertSame(fp.offset(3), fp.offset(3));
+    assertSame(op.offset(0), op.offset(0));
+    assertEquals(fp.offset(3), new FrameAddr(fp, 3));
+    assertEquals(fp.offset(3).hashCode(), new FrameAddr(fp, 3).hashCode());
+    assertFalse(fp.offset(0).equals(fp.offset(1)));
+    assertFalse(fp.offset(0).equals(op.offset(0)));
+  }
+
+  @Test
+  public void testSortedStore() throws ParseException {
+    ClassDef foo = getOneClass("invoke1.oocesk");
+    Store store = MutableStore.sorted();
+    OOCESK.execute(foo, store, null);
+    Addr last = null;
+    for (Addr a : store.toSortedMap().keySet()) {
+      if (last != null)
+        assertTrue(Addr.ordering.compare(last, a) < 0);
+      last = a;
+    }
+    assertTrue(last != null);
+  }
+
+  @Test
+  public void testAddrOrdering() {
+    FramePointer fp = new FramePointer();
+    ObjectPointer op = new ObjectPointer();
+    FramePointer fp2 = new FramePointer();
+    assertTrue(Addr.ordering.compare(fp2.offset(0), op.offset(0)) < 0);
+    assertTrue(Addr.ordering.compare(fp.offset(5), fp2.offset(0)) < 0);
+    assertTrue(Addr.ordering.compare(fp.offset(1), fp.offset(2)) < 0);
+    assertEquals(0, Addr.ordering.compare(fp.offset(1), fp.offset(1)));
+  }
+
+  @Test
+  public void testBatch() {
+    FramePointer fp = new FramePointer();
+    Store s1 = Store.empty().alloc(fp, new Value[2]);
+    Store s2 = s1.batch().bind(fp, 0, new IntValue(1)).bind(fp, 1, new IntValue(2))
+        .bind(fp, 0, new IntValue(3)).publish();
+    assertEquals(null, s1.lookup(fp, 0));
+    assertEquals(3, s2.lookup(fp, 0).toInt());
+    assertEquals(2, s2.lookup(fp, 1).toInt());
+  }
+
+  @Test
+  public void testMachineSnapshots() throws ParseException {
+    ClassDef foo = getOneClass("invoke1.oocesk");
+    State state = OOCESK.initialState(foo, Store.empty());
+    Machine m = new Machine(state);
+    int steps = 0;
+    while (m.step()) {
+      state = state.next();
+      State snapshot = m.snapshot();
+      assertSame(state.stmt, snapshot.stmt);
+      assertEquals(state.store.size(), snapshot.store.size());
+      steps++;
+    }
+    assertTrue(steps > 0);
+    assertEquals(null, state.next());
+  }
+
+  @Test
+  public void testClosureTier() throws ParseException {
+    String[] programs = { "invoke1.oocesk", "fields1.oocesk", "garbage1.oocesk",
+        "throw1.oocesk" };
+    for (String program : programs) {
+      List<ClassDef> classes = load(program);
+      ClassDef main = classes.get(classes.size() - 1);
+      String interpreted = output(main, "interpret");
+      assertEquals(program, interpreted, output(main, "closures"));
+      assertTrue(program, interpreted.length() > 0);
+    }
+  }
+
+  @Test
+  public void testStaticHandlers() throws ParseException {
+    List<ClassDef> classes = load("throw1.oocesk");
+    ClassDef main = classes.get(classes.size() - 1);
+    PrintStream out = System.out;
+    System.setOut(new PrintStream(new ByteArrayOutputStream()));
+    try {
+      // Compiled code catches the exception without pushing a handler:
+      State state = OOCESK.initialState(main, new MutableStore(), true);
+      while (state != null) {
+        for (Kont k = state.kont; k != null; k = k.next)
+          assertFalse(k instanceof HandlerKont);
+        state = state.next();
+      }
+    } finally {
+      System.setOut(out);
+    }
+  }
+
+  @Test
+  public void testPathDependentHandlers() throws ParseException {
+    // The handlers in force at the throw depend on the path taken to it:
+    ClassDef main = load("handlers1.oocesk").get(1);
+    assertEquals("1\n", output(main, "interpret"));
+    assertEquals("1\n", output(main, "closures"));
+  }
+
+  @Test
+  public void testDeepUnwinding() throws ParseException {
+    // The exception passes through 100000 frames on its way to the handler:
+    ClassDef main = load("throw3.oocesk").get(1);
+    assertTrue(peakStoreSize(main) > 100000);
+    assertEquals("0\n", output(main, "interpret"));
+    assertEquals("0\n", output(main, "closures"));
+    assertEquals("0\n", output(main, "linear"));
+  }
+
+  @Test
+  public void testLinearTier() throws ParseException {
+    String[] programs = { "invoke1.oocesk", "fields1.oocesk", "garbage1.oocesk",
+        "throw1.oocesk" };
+    for (String program : programs) {
+      List<ClassDef> classes = load(program);
+      ClassDef main = classes.get(classes.size() - 1);
+      assertEquals(program, output(main, "interpret"), output(main, "linear"));
+    }
+  }
+
+  @Test
+  public void testDirectStyle() throws ParseException {
+    String[] programs = { "invoke1.oocesk", "fields1.oocesk", "garbage1.oocesk",
+        "throw1.oocesk", "handlers1.oocesk" };
+    for (String program : programs) {
+      List<ClassDef> classes = load(program);
+      ClassDef main = classes.get(classes.size() - 1);
+      String interpreted = output(main, "interpret");
+      assertEquals(program, interpreted, output(main, "direct"));
+      // Every call past the first runs on the machine:
+      assertEquals(program, interpreted, output(main, "shallow"));
+    }
+  }
+
+  @Test
+  public void testTailCalls() throws ParseException {
+    ClassDef main = getOneClass("tail1.oocesk");
+    PrintStream out = System.out;
+    System.setOut(new PrintStream(new ByteArrayOutputStream()));
+    try {
+      // A million calls deep, the store never holds more than two frames:
+      Machine m = new Machine(OOCESK.initialState(main, new MutableStore(), true));
+      int size = m.store.size();
+      while (m.step())
+        assertTrue(m.store.size() <= size + 1);
+
+      // Nor does the off-heap store's buffer fill up with old frames:
+      OffHeapStore store = new OffHeapStore();
+      m = new Machine(OOCESK.initialState(main, store, true));
+      int used = store.bytesInUse();
+      while (m.step())
+        assertTrue(store.bytesInUse() <= 2 * used + 1024);
+    } finally {
+      System.setOut(out);
+    }
+    assertEquals("1000000\n", output(main, "interpret"));
+    assertEquals("1000000\n", output(main, "direct"));
+    assertEquals(0, fallbacks(main, DirectInterpreter.DEFAULT_MAX_DEPTH));
+  }
+
+  @Test
+  public void testDirectStyleFallsBack() throws ParseException {
+    // Far deeper than the Java stack would allow in direct style:
+    ClassDef main = load("throw3.oocesk").get(1);
+    assertEquals("0\n", output(main, "direct"));
+    assertTrue(fallbacks(main, DirectInterpreter.DEFAULT_MAX_DEPTH) > 0);
+  }
+
+  @Test
+  public void testLinearCollects() throws ParseException {
+    ClassDef foo = getOneClass("garbage1.oocesk");
+    Collector collector = new Collector(4);
+    OOCESK.executeLinear(foo, new MutableStore(), collector);
+    assertTrue(collector.collections() > 0);
+  }
+
+  @Test
+  public void testDirectStyleCollectsInLoops() throws ParseException {
+    // Objects are allocated with no calls to collect at:
+    ClassDef foo = getOneClass("garbage2.oocesk");
+    Collector collector = new Collector(4);
+    OOCESK.executeDirect(foo, new MutableStore(), collector, DirectInterpreter.DEFAULT_MAX_DEPTH);
+    assertTrue(collector.collections() > 0);
+  }
+
+  @Test
+  public void testProgramsAreIsolated() throws ParseException {
+    // Both programs define a class Foo, and labels of their own:
+    ClassDef invoke = load("invoke1.oocesk").get(0);
+    ClassDef garbage = load("garbage1.oocesk").get(0);
+    assertEquals("3628800\n", output(invoke, "interpret"));
+    assertEquals("100\n", output(garbage, "interpret"));
+    assertEquals("3628800\n", output(invoke, "closures"));
+  }
+
+  @Test
+  public void testLabelsAreScopedToMethods() throws ParseException {
+    // Both methods of the program have the labels loop and done:
+    ClassDef main = getOneClass("labels1.oocesk");
+    assertEquals("3\n5\n", output(main, "interpret"));
+    assertEquals("3\n5\n", output(main, "closures"));
+    assertEquals("3\n5\n", output(main, "linear"));
+  }
+
+  @Test
+  public void testInlineCaches() throws ParseException {
+    List<ClassDef> classes = load("dispatch1.oocesk");
+    ClassDef main = classes.get(classes.size() - 1);
+    assertEquals("52\n", output(main, "interpret"));
+
+    InvokeStmt v = null;
+    for (Stmt s = main.lookupMethod("main").body; s != null; s = s.next) {
+      if (s instanceof InvokeStmt && ((InvokeStmt) s).methodName.equals("v"))
+        v = (InvokeStmt) s;
+    }
+    assertTrue(v.cache.isMegamorphic());
+    assertEquals(InlineCache.POLYMORPHIC_LIMIT, v.cache.receiverClasses());
+    assertEquals(20, v.cache.hits() + v.cache.misses());
+
+    InlineCache.Stats stats = InlineCache.Stats.of(classes);
+    assertEquals(2, stats.megamorphic);
+    assertTrue(stats.hits > 0);
+  }
+
+  private String output(ClassDef main, String tier) {
+    PrintStream out = System.out;
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    System.setOut(new PrintStream(bytes));
+    try {
+      if (tier.equals("closures"))
+        OOCESK.execute(main, new MutableStore(), null);
+      else if (tier.equals("linear"))
+        OOCESK.executeLinear(main, new MutableStore(), null);
+      else if (tier.equals("direct"))
+        OOCESK.executeDirect(main, new MutableStore(), null, DirectInterpreter.DEFAULT_MAX_DEPTH);
+      else if (tier.equals("shallow"))
+        OOCESK.executeDirect(main, new MutableStore(), null, 1);
+      else
+        OOCESK.interpret(main, new MutableStore(), null);
+    } finally {
+      System.setOut(out);
+    }
+    return bytes.toString();
+  }
+
+  /* Steps the machine through a program, returning the most records stored. */
+  private int peakStoreSize(ClassDef main) {
+    PrintStream out = System.out;
+    System.setOut(new PrintStream(new ByteArrayOutputStream()));
+    try {
+      Machine m = new Machine(OOCESK.initialState(main, new MutableStore(), true));
+      int peak = m.store.size();
+      while (m.step())
+        peak = Math.max(peak, m.store.size());
+      return peak;
+    } finally {
+      System.setOut(out);
+    }
+  }
+
+  /* Runs a program in direct style, returning the calls run on the machine. */
+  private int fallbacks(ClassDef main, int maxDepth) {
+    PrintStream out = System.out;
+    System.setOut(new PrintStream(new ByteArrayOutputStream()));
+    try {
+      return DirectInterpreter.execute(main, new MutableStore(), null, maxDepth);
+    } finally {
+      System.setOut(out);
+    }
+  }
+
   private ClassDef getOneClass(String fileName) throws ParseException {
-    Parser p = parse(fileName);
-    return p.program().get(0);
+    return load(fileName).get(0);
+  }
+
+  private List<ClassDef> load(String fileName) throws ParseException {
+    try {
+      return Program.load(parse(fileName).program()).classes();
+    } catch (LinkException e) {
+      throw new RuntimeException(e);
+    }
   }
 
   private final File testDir = new File("test");
@@ -0,0 +1,82 @@
+package oocesk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class OffHeapStoreTest {
+
+  private final FieldLayout layout = new FieldLayout(null, Arrays.asList("a", "b"));
+
+  private final ClassDef foo = new ClassDef("Foo", "Object");
+
+  @Test
+  public void testRoundTrip() {
+    Store store = new OffHeapStore(16);
+    FramePointer fp = new FramePointer();
+    ObjectValue obj = new ObjectValue(foo, layout, new ObjectPointer());
+    store = store.allocObject(obj);
+    store = store.alloc(fp, new Value[7]);
+    store = store.bind(fp, 0, new IntValue(-42));
+    store = store.bind(fp, 1, TrueValue.VALUE);
+    store = store.bind(fp, 2, FalseValue.VALUE);
+    store = store.bind(fp, 3, NullValue.VALUE);
+    store = store.bind(fp, 4, VoidValue.VALUE);
+    store = store.bind(fp, 5, obj);
+    store = store.bind(obj.pointer, 1, new IntValue(7));
+
+    assertEquals(-42, store.lookup(fp, 0).toInt());
+    assertSame(TrueValue.VALUE, store.lookup(fp, 1));
+    assertSame(FalseValue.VALUE, store.lookup(fp, 2));
+    assertSame(NullValue.VALUE, store.lookup(fp, 3));
+    assertSame(VoidValue.VALUE, store.lookup(fp, 4));
+    assertNull(store.lookup(fp, 6));
+
+    ObjectValue read = (ObjectValue) store.lookup(fp, 5);
+    assertSame(foo, read.classs);
+    assertSame(layout, read.layout);
+    assertEquals(obj.pointer, read.pointer);
+    assertNull(store.lookup(read.pointer, 0));
+    assertEquals(7, store.lookup(read.pointer, 1).toInt());
+    assertEquals(2, store.size());
+  }
+
+  @Test
+  public void testReallocation() {
+    OffHeapStore store = new OffHeapStore(16);
+    FramePointer fp = new FramePointer();
+    store.alloc(fp, new Value[2]);
+    int used = store.bytesInUse();
+
+    // A record at least as large is overwritten in place:
+    for (int i = 0; i < 100000; ++i)
+      store.alloc(fp, new Value[] { new IntValue(i) });
+    assertEquals(used, store.bytesInUse());
+    assertEquals(99999, store.lookup(fp, 0).toInt());
+
+    // Larger ones leave dead records, which are compacted away:
+    for (int i = 0; i < 100000; ++i)
+      store.alloc(fp, new Value[2 + i % 2]);
+    assertTrue(store.bytesInUse() < 1024);
+    assertEquals(1, store.size());
+  }
+
+  @Test
+  public void testRetain() {
+    Store store = new OffHeapStore(16);
+    FramePointer fp1 = new FramePointer();
+    FramePointer fp2 = new FramePointer();
+    store = store.alloc(fp1, new Value[] { new IntValue(1) });
+    store = store.alloc(fp2, new Value[] { new IntValue(2) });
+    store = store.retain(Collections.<Pointer> singleton(fp2));
+    assertEquals(1, store.size());
+    assertEquals(2, store.lookup(fp2, 0).toInt());
+    assertNull(store.record(fp1));
+  }
+}